@@ -0,0 +1,80 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.persistence.EntityManager;
+
+/**
+ * persistence-units and test-data shared by the benchmarks
+ */
+final class BenchmarkFixtures {
+
+    private static final String ENTITY_PACKAGE = "at.schmutterer.oss.jpatest.benchmarks.entities.";
+    private static final int FLUSH_INTERVAL = 500;
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * the persistence-unit with all entities using the given provider ("hibernate", "eclipselink" or "openjpa")
+     */
+    public static String getPersistenceUnit(String provider) {
+        return getPersistenceUnit(provider, 8);
+    }
+
+    /**
+     * the persistence-unit using the given provider with the first {@code entities} levels (1, 4 or 8)
+     */
+    public static String getPersistenceUnit(String provider, int entities) {
+        return "bench-" + provider + "-" + entities;
+    }
+
+    /**
+     * persists the given number of rows into each of the first {@code depth} levels, every row referencing a row of
+     * the previous level
+     */
+    public static void fill(EntityManager entityManager, int rows, int depth) throws ReflectiveOperationException {
+        entityManager.getTransaction().begin();
+        List<Object> parents = new ArrayList<>();
+        int pending = 0;
+        for (int level = 1; level <= depth; level++) {
+            Class<?> levelClass = Class.forName(ENTITY_PACKAGE + "Level" + level);
+            List<Object> current = new ArrayList<>(rows);
+            for (int row = 0; row < rows; row++) {
+                Object entity = levelClass.getDeclaredConstructor().newInstance();
+                levelClass.getMethod("setName", String.class).invoke(entity, "row " + row);
+                if (!parents.isEmpty()) {
+                    Object parent = parents.get(row % parents.size());
+                    levelClass.getMethod("setParent", parent.getClass()).invoke(entity, parent);
+                }
+                entityManager.persist(entity);
+                current.add(entity);
+                if (++pending % FLUSH_INTERVAL == 0) {
+                    entityManager.flush();
+                }
+            }
+            parents = current;
+        }
+        entityManager.getTransaction().commit();
+        entityManager.clear();
+    }
+}
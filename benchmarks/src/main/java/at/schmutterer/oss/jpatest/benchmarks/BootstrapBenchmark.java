@@ -0,0 +1,82 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.benchmarks;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import at.schmutterer.oss.jpatest.junit.TestPersistenceUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the EntityManagerFactory of a persistence-unit with {@code entities} entity-classes, including
+ * schema-generation in a fresh database, and creating its first EntityManager.
+ *
+ * Every invocation uses an override of its own, so the rule cannot reuse a cached factory. The cache is limited
+ * to no idle factories, so the factory of an invocation is closed and its database dropped right after it.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(value = 1, jvmArgsAppend = "-D" + TestPersistenceUnit.JPATEST_CACHE_MAX_ENTRIES + "=0")
+@State(Scope.Benchmark)
+public class BootstrapBenchmark {
+
+    /**
+     * only distinguishes the configurations of the invocations, providers ignore unknown properties
+     */
+    private static final String INVOCATION_PROPERTY = "jpatest.benchmark.invocation";
+
+    @Param({ "hibernate", "eclipselink", "openjpa" })
+    private String provider;
+
+    @Param({ "1", "4", "8" })
+    private int entities;
+
+    private TestPersistenceUnit testPersistenceUnit;
+    private int invocations;
+
+    @TearDown(Level.Invocation)
+    public void dispose() {
+        testPersistenceUnit.cleanDatabases();
+    }
+
+    @Benchmark
+    public void bootstrap() throws SQLException {
+        testPersistenceUnit = new TestPersistenceUnit(
+            Collections.singletonMap(INVOCATION_PROPERTY, String.valueOf(invocations++)));
+        // the EntityManager, and with it the factory, is only created on its first operation
+        testPersistenceUnit.getEntityManager(BenchmarkFixtures.getPersistenceUnit(provider, entities)).getFlushMode();
+        testPersistenceUnit.endTest();
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.benchmarks;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import at.schmutterer.oss.jpatest.junit.TestPersistenceUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * clearing the database after a test that wrote {@code rows} rows into each of {@code depth} tables,
+ * every table referencing the previous one
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 30)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CleanBenchmark {
+
+    @Param({ "hibernate", "eclipselink", "openjpa" })
+    private String provider;
+
+    @Param({ "delete", "truncate" })
+    private String cleanMode;
+
+    @Param({ "10", "1000" })
+    private int rows;
+
+    @Param({ "1", "4", "8" })
+    private int depth;
+
+    private TestPersistenceUnit testPersistenceUnit;
+    private String persistenceUnit;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        testPersistenceUnit =
+            new TestPersistenceUnit(Collections.singletonMap(TestPersistenceUnit.JPATEST_CLEAN_MODE, cleanMode));
+        persistenceUnit = BenchmarkFixtures.getPersistenceUnit(provider);
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() throws Exception {
+        BenchmarkFixtures.fill(testPersistenceUnit.getEntityManager(persistenceUnit), rows, depth);
+        testPersistenceUnit.endTest();
+    }
+
+    @Benchmark
+    public void clearTables() {
+        testPersistenceUnit.cleanDatabases();
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.benchmarks;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.EntityManager;
+
+import at.schmutterer.oss.jpatest.junit.TestPersistenceUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * getting an EntityManager of an already bootstrapped persistence-unit and closing it at the end of the test
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EntityManagerBenchmark {
+
+    @Param({ "hibernate", "eclipselink", "openjpa" })
+    private String provider;
+
+    private TestPersistenceUnit testPersistenceUnit;
+    private String persistenceUnit;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        testPersistenceUnit = new TestPersistenceUnit();
+        persistenceUnit = BenchmarkFixtures.getPersistenceUnit(provider);
+        // bootstrap outside of the measurement
+        testPersistenceUnit.getEntityManager(persistenceUnit).getFlushMode();
+        testPersistenceUnit.endTest();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        testPersistenceUnit.cleanDatabases();
+    }
+
+    @Benchmark
+    public EntityManager getEntityManager() throws SQLException {
+        EntityManager entityManager = testPersistenceUnit.getEntityManager(persistenceUnit);
+        // the EntityManager is only created on its first operation
+        entityManager.getFlushMode();
+        testPersistenceUnit.endTest();
+        return entityManager;
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Clears the databases of a persistence-unit on a background-thread.
+ *
+ * The {@link TestDataSource} of the unit serves several h2-databases with the same schema. After a test the
+ * data-source is switched to a database that was cleared already, and the database the test wrote to is cleared
+ * in the background while the next test runs. A test only waits for the background-thread when no database is
+ * clean yet. A database that could not be cleared is never used again, the unit has to be rebuilt then.
+ */
+class BackgroundCleaner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackgroundCleaner.class);
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "jpatest-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String name;
+    private final TestDataSource dataSource;
+    private final NativeCleanPlan nativeCleanPlan;
+    private final BlockingQueue<Integer> cleanDatabases = new LinkedBlockingQueue<>();
+    private volatile boolean failed;
+
+    /**
+     * @param nativeCleanPlan the plan for deleting the content of the mapped tables, or null to truncate all
+     *                        tables instead
+     */
+    BackgroundCleaner(String name, TestDataSource dataSource, NativeCleanPlan nativeCleanPlan) {
+        this.name = name;
+        this.dataSource = dataSource;
+        this.nativeCleanPlan = nativeCleanPlan;
+        for (int i = 0; i < dataSource.getDatabaseCount(); i++) {
+            if (i != dataSource.getCurrentDatabase()) {
+                cleanDatabases.add(i);
+            }
+        }
+    }
+
+    /**
+     * Switches the data-source to a clean database, waiting for the background-thread if there is none yet, and
+     * starts clearing the database used so far. The sequences of the clean database are advanced first, because
+     * the provider keeps using the ids it allocated from the previous one.
+     */
+    public void swap() throws SQLException, InterruptedException {
+        final int dirtyDatabase = dataSource.getCurrentDatabase();
+        Integer nextDatabase;
+        do {
+            if (failed) {
+                throw new SQLException("a database of persistence-unit " + name
+                    + " could not be cleared in the background");
+            }
+            nextDatabase = cleanDatabases.poll(100, TimeUnit.MILLISECONDS);
+        } while (nextDatabase == null);
+        try (Connection source = dataSource.openConnection(dirtyDatabase);
+             Connection target = dataSource.openConnection(nextDatabase)) {
+            H2Database.copySequences(source, target);
+        } catch (SQLException | RuntimeException e) {
+            cleanDatabases.add(nextDatabase);
+            throw e;
+        }
+        dataSource.switchTo(nextDatabase);
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                clear(dirtyDatabase);
+            }
+        });
+    }
+
+    private void clear(int database) {
+        long start = System.currentTimeMillis();
+        try (Connection connection = dataSource.openConnection(database)) {
+            if (nativeCleanPlan == null) {
+                H2Database.truncate(connection, H2Database.listTables(connection));
+            } else {
+                try {
+                    nativeCleanPlan.delete(connection, null);
+                } catch (SQLException e) {
+                    LOGGER.warn("could not delete the content of the tables, truncating them instead", e);
+                    H2Database.truncate(connection, H2Database.listTables(connection));
+                }
+            }
+            LOGGER.info("cleared database {} of {} in the background in {} ms", database, name,
+                System.currentTimeMillis() - start);
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.error("could not clear database " + database + " of persistence-unit " + name
+                + ", it is rebuilt for the next test", e);
+            failed = true;
+            return;
+        }
+        cleanDatabases.add(database);
+    }
+
+    /**
+     * true if a database could not be cleared in the background, so the unit has to be rebuilt
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * waits until the databases handed to the background-thread so far are cleared
+     */
+    public void awaitCleared(long timeoutMillis) {
+        try {
+            EXECUTOR.submit(new Runnable() {
+                @Override
+                public void run() {
+                    // the executor works in order, so all previously started clean-ups are done
+                }
+            }).get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            LOGGER.warn("the databases of persistence-unit {} are still being cleared", name, e);
+        }
+    }
+}
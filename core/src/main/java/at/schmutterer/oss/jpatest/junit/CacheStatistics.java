@@ -0,0 +1,71 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+/**
+ * snapshot of the counters of the cache of EntityManagerFactories, see {@link TestPersistenceUnit#getCacheStatistics()}
+ */
+public final class CacheStatistics {
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int size;
+
+    CacheStatistics(long hits, long misses, long evictions, int size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.size = size;
+    }
+
+    /**
+     * number of requests served by an already built (or currently building) EntityManagerFactory
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * number of EntityManagerFactories built
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * number of EntityManagerFactories closed to stay within the configured bounds
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * number of EntityManagerFactories currently cached
+     */
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", size=" + size;
+    }
+}
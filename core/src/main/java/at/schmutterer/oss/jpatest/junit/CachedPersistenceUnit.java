@@ -0,0 +1,275 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.persistence.Cache;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An EntityManagerFactory together with everything that is derived from it once and reused by all tests
+ * working with the same persistence-unit.
+ */
+class CachedPersistenceUnit {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachedPersistenceUnit.class);
+    private static final long CLOSE_TIMEOUT_MILLIS = 10000;
+
+    private final String name;
+    private final EntityManagerFactory entityManagerFactory;
+    private final ConnectionSettings connectionSettings;
+    private final TestDataSource dataSource;
+    private final JpaProvider provider;
+    private final CleanPlan cleanPlan;
+    private final boolean ownDatabases;
+    private volatile String trackedDatabase;
+    private volatile byte[] checkpoint;
+    private volatile BackgroundCleaner backgroundCleaner;
+    private NativeCleanPlan nativeCleanPlan;
+    private boolean nativeCleanPlanResolved;
+    private final AtomicInteger users = new AtomicInteger();
+    private volatile long lastAccess;
+    private volatile boolean invalidated;
+
+    CachedPersistenceUnit(String name, EntityManagerFactory entityManagerFactory,
+            ConnectionSettings connectionSettings, TestDataSource dataSource, JpaProvider provider,
+            boolean ownDatabases) {
+        this.name = name;
+        this.entityManagerFactory = entityManagerFactory;
+        this.connectionSettings = connectionSettings;
+        this.dataSource = dataSource;
+        this.provider = provider;
+        this.ownDatabases = ownDatabases;
+        this.cleanPlan = CleanPlan.create(entityManagerFactory.getMetamodel());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public EntityManagerFactory getEntityManagerFactory() {
+        return entityManagerFactory;
+    }
+
+    public ConnectionSettings getConnectionSettings() {
+        return connectionSettings;
+    }
+
+    /**
+     * the data-source handed to the provider, or null if the provider manages its connections itself
+     */
+    public TestDataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * a new EntityManager with resource-local transactions
+     */
+    public EntityManager createEntityManager() {
+        Properties properties = new Properties();
+        properties.put("openjpa.TransactionMode", "local");
+        return entityManagerFactory.createEntityManager(properties);
+    }
+
+    /**
+     * makes sure the provider created the tables, before jpatest works on them with its own connections
+     */
+    public void ensureSchema() {
+        // some providers create the schema lazily with the first EntityManager
+        createEntityManager().close();
+    }
+
+    /**
+     * a connection for the operations of jpatest itself, taken from the pool if the unit has one
+     */
+    public Connection openConnection() throws SQLException {
+        if (dataSource != null) {
+            return dataSource.openConnection();
+        }
+        return connectionSettings.openConnection();
+    }
+
+    public CleanPlan getCleanPlan() {
+        return cleanPlan;
+    }
+
+    /**
+     * The plan for clearing the mapped tables with native statements, or null if the mapping of the provider
+     * cannot be read. The plan is resolved with the first call, after the provider created the tables.
+     */
+    public synchronized NativeCleanPlan getNativeCleanPlan(Connection connection) throws SQLException {
+        if (!nativeCleanPlanResolved) {
+            try {
+                nativeCleanPlan = NativeCleanPlan.create(connection, provider.getMappedTables(entityManagerFactory));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOGGER.debug("could not read the tables mapped by persistence-unit {}, its entities are deleted "
+                    + "with JPQL instead", name, e);
+            }
+            nativeCleanPlanResolved = true;
+        }
+        return nativeCleanPlan;
+    }
+
+    /**
+     * name of the database whose written tables are recorded by {@link DirtyTableTrigger}s, or null if
+     * dirty-table tracking is not enabled for this persistence-unit
+     */
+    public String getTrackedDatabase() {
+        return trackedDatabase;
+    }
+
+    public void setTrackedDatabase(String trackedDatabase) {
+        this.trackedDatabase = trackedDatabase;
+    }
+
+    /**
+     * the cleaner switching between the databases of the data-source, or null if the database is cleared after
+     * each test
+     */
+    public BackgroundCleaner getBackgroundCleaner() {
+        return backgroundCleaner;
+    }
+
+    public void setBackgroundCleaner(BackgroundCleaner backgroundCleaner) {
+        this.backgroundCleaner = backgroundCleaner;
+    }
+
+    /**
+     * image of the database captured by {@link TestPersistenceUnit#checkpoint(String)}, or null
+     */
+    public byte[] getCheckpoint() {
+        return checkpoint;
+    }
+
+    public void setCheckpoint(byte[] checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * evicts the shared cache and the query-cache, after the content of the database was changed behind the back
+     * of the provider
+     */
+    public void evictCaches() {
+        Cache cache = entityManagerFactory.getCache();
+        if (cache != null) {
+            cache.evictAll();
+        }
+        try {
+            provider.evictQueryCache(entityManagerFactory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.warn("could not evict query-cache of persistence-unit {}", name, e);
+        }
+    }
+
+    /**
+     * the counters of the shared cache and the query-cache of the provider
+     */
+    public SharedCacheStatistics getSharedCacheStatistics() {
+        try {
+            return provider.getSharedCacheStatistics(entityManagerFactory);
+        } catch (ReflectiveOperationException e) {
+            throw new PersistenceException("could not read the cache-statistics of persistence-unit " + name, e);
+        }
+    }
+
+    /**
+     * @param access increasing value ordering the accesses to all units
+     */
+    void acquire(long access) {
+        users.incrementAndGet();
+        lastAccess = access;
+    }
+
+    /**
+     * @return the number of remaining users
+     */
+    int release() {
+        return users.decrementAndGet();
+    }
+
+    public boolean isInUse() {
+        return users.get() > 0;
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * marks the unit as removed from the cache, see {@link PersistenceUnitCache#invalidate(CachedPersistenceUnit)}
+     */
+    void invalidate() {
+        invalidated = true;
+    }
+
+    public boolean isInvalidated() {
+        return invalidated;
+    }
+
+    /**
+     * closes the EntityManagerFactory and the pooled connections, and drops the h2-databases created by jpatest.
+     * Databases configured by the user are left alone.
+     */
+    public void close() {
+        if (backgroundCleaner != null) {
+            backgroundCleaner.awaitCleared(CLOSE_TIMEOUT_MILLIS);
+        }
+        try {
+            entityManagerFactory.close();
+        } catch (RuntimeException e) {
+            LOGGER.warn("could not close EntityManagerFactory of persistence-unit " + name, e);
+        }
+        if (dataSource != null) {
+            dataSource.close();
+        }
+        if (trackedDatabase != null) {
+            DirtyTableTrigger.forget(trackedDatabase);
+        }
+        if (!ownDatabases) {
+            return;
+        }
+        drop(connectionSettings);
+        if (dataSource != null) {
+            for (int i = 1; i < dataSource.getDatabaseCount(); i++) {
+                drop(dataSource.getConnectionSettings(i));
+            }
+        }
+    }
+
+    private void drop(ConnectionSettings database) {
+        try (Connection connection = database.openConnection();
+             Statement statement = connection.createStatement()) {
+            // deletes the pages of databases stored in an in-memory file-system, see StorageMode
+            statement.execute("DROP ALL OBJECTS DELETE FILES");
+            statement.execute("SHUTDOWN");
+        } catch (SQLException e) {
+            LOGGER.warn("could not drop database of persistence-unit " + name, e);
+        }
+    }
+}
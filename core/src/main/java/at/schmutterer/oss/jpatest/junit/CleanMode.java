@@ -0,0 +1,37 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+/**
+ * strategies for clearing the database after each test, configured with the property
+ * {@link TestPersistenceUnit#JPATEST_CLEAN_MODE}
+ */
+public enum CleanMode {
+    /**
+     * delete the content of all tables mapped by the persistence-unit with native statements, or all entities with
+     * JPQL-statements if the mapping of the provider cannot be read (default)
+     */
+    DELETE,
+    /**
+     * truncate all tables with native statements over a single JDBC-connection, with referential-integrity
+     * turned off. Only available for h2-databases, other databases fall back to {@link #DELETE}.
+     */
+    TRUNCATE
+}
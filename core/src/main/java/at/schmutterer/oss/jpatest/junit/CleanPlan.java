@@ -0,0 +1,330 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Member;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.persistence.Embeddable;
+import javax.persistence.Entity;
+import javax.persistence.JoinColumn;
+import javax.persistence.JoinColumns;
+import javax.persistence.ManyToMany;
+import javax.persistence.MappedSuperclass;
+import javax.persistence.OneToMany;
+import javax.persistence.OneToOne;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.PluralAttribute;
+import javax.persistence.metamodel.SingularAttribute;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Order in which the entities of a persistence-unit can be deleted without violating
+ * referential-integrity constraints.
+ *
+ * The plan is derived once from the associations in the metamodel: an entity holding a foreign key
+ * to another entity is deleted before the referenced one. Entities that are part of a reference-cycle
+ * cannot be ordered and are appended at the end of the plan (see {@link #isComplete()}).
+ */
+class CleanPlan {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CleanPlan.class);
+
+    private static final Comparator<Class<?>> BY_NAME = new Comparator<Class<?>>() {
+        @Override
+        public int compare(Class<?> o1, Class<?> o2) {
+            return o1.getName().compareTo(o2.getName());
+        }
+    };
+
+    private final List<Class<?>> entityTypes;
+    private final List<String> entityNames;
+    private final boolean complete;
+    private final Map<String, List<String>> references = new HashMap<>();
+
+    private CleanPlan(List<Class<?>> entityTypes, boolean complete) {
+        this.entityTypes = Collections.unmodifiableList(entityTypes);
+        List<String> names = new ArrayList<>();
+        for (Class<?> entityType : entityTypes) {
+            names.add(retrieveEntityName(entityType));
+        }
+        this.entityNames = Collections.unmodifiableList(names);
+        this.complete = complete;
+    }
+
+    public static CleanPlan create(Metamodel metamodel) {
+        List<Class<?>> candidates = new ArrayList<>();
+        for (ManagedType<?> type : metamodel.getManagedTypes()) {
+            Class<?> javaType = type.getJavaType();
+            if (isNonEntityDatabaseClass(javaType)) {
+                continue;
+            }
+            if (retrieveEntityName(javaType) == null) {
+                LOGGER.warn("could not determine name for entity {}", javaType);
+                continue;
+            }
+            candidates.add(javaType);
+        }
+        Collections.sort(candidates, BY_NAME);
+
+        Map<Class<?>, Set<Class<?>>> deleteBefore = new HashMap<>();
+        for (Class<?> candidate : candidates) {
+            deleteBefore.put(candidate, new LinkedHashSet<Class<?>>());
+        }
+        for (Class<?> candidate : candidates) {
+            ManagedType<?> type = metamodel.managedType(candidate);
+            for (Attribute<?, ?> attribute : type.getAttributes()) {
+                if (!isAssociation(attribute)) {
+                    continue;
+                }
+                Class<?> target = retrieveTargetType(attribute);
+                if (target == null) {
+                    continue;
+                }
+                if (ownsForeignKey(attribute)) {
+                    // candidate references target, so candidate has to go first
+                    for (Class<?> referenced : concreteEntities(candidates, target)) {
+                        addEdge(deleteBefore, candidate, referenced);
+                    }
+                } else if (targetOwnsForeignKey(attribute)) {
+                    for (Class<?> referencing : concreteEntities(candidates, target)) {
+                        addEdge(deleteBefore, referencing, candidate);
+                    }
+                }
+            }
+        }
+        CleanPlan result = sort(candidates, deleteBefore);
+        for (Class<?> candidate : candidates) {
+            List<String> attributes = new ArrayList<>();
+            for (Attribute<?, ?> attribute : metamodel.managedType(candidate).getAttributes()) {
+                if (attribute instanceof SingularAttribute && isAssociation(attribute) && ownsForeignKey(attribute)) {
+                    attributes.add(attribute.getName());
+                }
+            }
+            Collections.sort(attributes);
+            result.references.put(retrieveEntityName(candidate), Collections.unmodifiableList(attributes));
+        }
+        return result;
+    }
+
+    private static CleanPlan sort(List<Class<?>> candidates, Map<Class<?>, Set<Class<?>>> deleteBefore) {
+        Map<Class<?>, Integer> inDegree = new HashMap<>();
+        for (Class<?> candidate : candidates) {
+            inDegree.put(candidate, 0);
+        }
+        for (Set<Class<?>> successors : deleteBefore.values()) {
+            for (Class<?> successor : successors) {
+                inDegree.put(successor, inDegree.get(successor) + 1);
+            }
+        }
+        List<Class<?>> result = new ArrayList<>();
+        List<Class<?>> ready = new ArrayList<>();
+        for (Class<?> candidate : candidates) {
+            if (inDegree.get(candidate) == 0) {
+                ready.add(candidate);
+            }
+        }
+        while (!ready.isEmpty()) {
+            Class<?> next = ready.remove(0);
+            result.add(next);
+            List<Class<?>> released = new ArrayList<>();
+            for (Class<?> successor : deleteBefore.get(next)) {
+                int degree = inDegree.get(successor) - 1;
+                inDegree.put(successor, degree);
+                if (degree == 0) {
+                    released.add(successor);
+                }
+            }
+            Collections.sort(released, BY_NAME);
+            ready.addAll(released);
+        }
+        boolean complete = result.size() == candidates.size();
+        if (!complete) {
+            for (Class<?> candidate : candidates) {
+                if (!result.contains(candidate)) {
+                    result.add(candidate);
+                }
+            }
+        }
+        return new CleanPlan(result, complete);
+    }
+
+    /**
+     * not using {@link Attribute#isAssociation()}, which is false for many-to-one attributes in some providers
+     */
+    private static boolean isAssociation(Attribute<?, ?> attribute) {
+        switch (attribute.getPersistentAttributeType()) {
+            case MANY_TO_ONE:
+            case ONE_TO_ONE:
+            case ONE_TO_MANY:
+            case MANY_TO_MANY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void addEdge(Map<Class<?>, Set<Class<?>>> deleteBefore, Class<?> first, Class<?> second) {
+        if (first.equals(second)) {
+            // self-references do not influence the order between tables
+            return;
+        }
+        deleteBefore.get(first).add(second);
+    }
+
+    private static List<Class<?>> concreteEntities(List<Class<?>> candidates, Class<?> target) {
+        List<Class<?>> result = new ArrayList<>();
+        for (Class<?> candidate : candidates) {
+            if (target.isAssignableFrom(candidate) || candidate.isAssignableFrom(target)) {
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    private static Class<?> retrieveTargetType(Attribute<?, ?> attribute) {
+        if (attribute instanceof SingularAttribute) {
+            return ((SingularAttribute<?, ?>) attribute).getType().getJavaType();
+        }
+        if (attribute instanceof PluralAttribute) {
+            return ((PluralAttribute<?, ?, ?>) attribute).getElementType().getJavaType();
+        }
+        return null;
+    }
+
+    /**
+     * many-to-one and the owning side of a one-to-one keep the foreign key in the table of the declaring entity.
+     * The owning side of a many-to-many (or a one-to-many using a join-table) is ordered the same way, but JPA does
+     * not require a bulk-delete to remove the rows of the join-table. When such rows remain, the deletion in planned
+     * order fails and the clean falls back to probing and finally to truncating; the {@link NativeCleanPlan}, which
+     * is tried first, orders the join-tables explicitly.
+     */
+    private static boolean ownsForeignKey(Attribute<?, ?> attribute) {
+        switch (attribute.getPersistentAttributeType()) {
+            case MANY_TO_ONE:
+                return true;
+            case ONE_TO_ONE:
+                OneToOne oneToOne = getAnnotation(attribute, OneToOne.class);
+                return oneToOne == null || oneToOne.mappedBy().isEmpty();
+            case MANY_TO_MANY:
+                ManyToMany manyToMany = getAnnotation(attribute, ManyToMany.class);
+                return manyToMany == null || manyToMany.mappedBy().isEmpty();
+            case ONE_TO_MANY:
+                OneToMany oneToMany = getAnnotation(attribute, OneToMany.class);
+                return (oneToMany == null || oneToMany.mappedBy().isEmpty()) && !hasJoinColumn(attribute);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * a unidirectional one-to-many with a join-column keeps the foreign key in the table of the target entity
+     */
+    private static boolean targetOwnsForeignKey(Attribute<?, ?> attribute) {
+        if (attribute.getPersistentAttributeType() != Attribute.PersistentAttributeType.ONE_TO_MANY) {
+            return false;
+        }
+        OneToMany oneToMany = getAnnotation(attribute, OneToMany.class);
+        if (oneToMany != null && !oneToMany.mappedBy().isEmpty()) {
+            return false;
+        }
+        return hasJoinColumn(attribute);
+    }
+
+    private static boolean hasJoinColumn(Attribute<?, ?> attribute) {
+        return getAnnotation(attribute, JoinColumn.class) != null
+            || getAnnotation(attribute, JoinColumns.class) != null;
+    }
+
+    static <T extends Annotation> T getAnnotation(Attribute<?, ?> attribute,
+            Class<T> annotationType) {
+        Member member = attribute.getJavaMember();
+        if (member instanceof AnnotatedElement) {
+            return ((AnnotatedElement) member).getAnnotation(annotationType);
+        }
+        return null;
+    }
+
+    static boolean isNonEntityDatabaseClass(Class<?> clazz) {
+        if (Modifier.isAbstract(clazz.getModifiers())) {
+            return true;
+        }
+        if (clazz.getAnnotation(Embeddable.class) != null) {
+            return true;
+        }
+        if (clazz.getAnnotation(MappedSuperclass.class) != null) {
+            return true;
+        }
+        return false;
+    }
+
+    static String retrieveEntityName(Class<?> javaType) {
+        Entity entity = javaType.getAnnotation(Entity.class);
+        if (entity == null) {
+            return null;
+        }
+        if (entity.name().isEmpty()) {
+            return javaType.getSimpleName();
+        }
+        return entity.name();
+    }
+
+    /**
+     * entity-types in the order they have to be deleted
+     */
+    public List<Class<?>> getEntityTypes() {
+        return entityTypes;
+    }
+
+    /**
+     * entity-names (as used in JPQL) in the order they have to be deleted
+     */
+    public List<String> getEntityNames() {
+        return entityNames;
+    }
+
+    /**
+     * attributes of the entity holding a foreign key to another entity, which can be set to null to break cycles
+     */
+    public List<String> getReferences(String entityName) {
+        List<String> result = references.get(entityName);
+        return result != null ? result : Collections.<String>emptyList();
+    }
+
+    /**
+     * false if the associations contain a cycle, so the order could not be fully determined
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * JDBC-connection settings of a persistence-unit, resolved from the properties that were passed to the provider.
+ */
+class ConnectionSettings {
+
+    private static final String[] URL_KEYS = {
+        "javax.persistence.jdbc.url",
+        "hibernate.connection.url",
+        "openjpa.Connection2URL",
+        "openjpa.ConnectionURL",
+    };
+    private static final String[] USER_KEYS = {
+        "javax.persistence.jdbc.user",
+        "hibernate.connection.username",
+        "openjpa.Connection2UserName",
+        "openjpa.ConnectionUserName",
+    };
+    private static final String[] PASSWORD_KEYS = {
+        "javax.persistence.jdbc.password",
+        "hibernate.connection.password",
+        "openjpa.Connection2Password",
+        "openjpa.ConnectionPassword",
+    };
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final boolean h2;
+
+    private ConnectionSettings(String url, String user, String password, boolean h2) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.h2 = h2;
+    }
+
+    /**
+     * true if the given property configures the jdbc-url for one of the providers
+     */
+    public static boolean isUrlProperty(String key) {
+        for (String urlKey : URL_KEYS) {
+            if (urlKey.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The settings only count as h2-settings if every provider-specific url-property points to the
+     * same h2-database, so that overriding the url for just one provider is never mistaken for h2.
+     */
+    public static ConnectionSettings fromProperties(Properties properties) {
+        Set<String> urls = new LinkedHashSet<>();
+        for (String key : URL_KEYS) {
+            Object value = properties.get(key);
+            if (value != null) {
+                urls.add(value.toString());
+            }
+        }
+        String url = urls.isEmpty() ? null : urls.iterator().next();
+        boolean h2 = urls.size() == 1 && url.startsWith("jdbc:h2:");
+        return new ConnectionSettings(url, findValue(properties, USER_KEYS), findValue(properties, PASSWORD_KEYS), h2);
+    }
+
+    private static String findValue(Properties properties, String[] keys) {
+        for (String key : keys) {
+            Object value = properties.get(key);
+            if (value != null) {
+                return value.toString();
+            }
+        }
+        return "";
+    }
+
+    /**
+     * the same settings for another database
+     */
+    public ConnectionSettings withUrl(String otherUrl) {
+        return new ConnectionSettings(otherUrl, user, password, otherUrl.startsWith("jdbc:h2:"));
+    }
+
+    public Connection openConnection() throws SQLException {
+        return DriverManager.getConnection(url, user, password);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public boolean isH2() {
+        return h2;
+    }
+}
@@ -0,0 +1,340 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Clears the databases of the persistence-units after each test, with the {@link CleanMode} configured for a rule.
+ *
+ * A rollback-isolated test is rolled back, and a unit with a {@link BackgroundCleaner} switches to a clean
+ * database. Otherwise the tables are truncated or their content deleted with native statements, and if that is
+ * not possible the entities are deleted with JPQL.
+ */
+class DatabaseCleaner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DatabaseCleaner.class);
+
+    private final CleanMode cleanMode;
+
+    DatabaseCleaner(CleanMode cleanMode) {
+        this.cleanMode = cleanMode;
+    }
+
+    /**
+     * copies the schema of the first database to the spare databases of the unit's data-source
+     */
+    public void enableBackgroundCleaning(CachedPersistenceUnit persistenceUnit) throws SQLException {
+        TestDataSource dataSource = persistenceUnit.getDataSource();
+        persistenceUnit.ensureSchema();
+        NativeCleanPlan nativeCleanPlan = null;
+        try (Connection source = dataSource.openConnection()) {
+            if (cleanMode != CleanMode.TRUNCATE) {
+                nativeCleanPlan = persistenceUnit.getNativeCleanPlan(source);
+                if (nativeCleanPlan == null) {
+                    LOGGER.warn("the tables of persistence-unit {} are unknown, its database is cleared after each "
+                        + "test instead of in the background", persistenceUnit.getName());
+                    return;
+                }
+            }
+            for (int i = 1; i < dataSource.getDatabaseCount(); i++) {
+                try (Connection target = dataSource.openConnection(i)) {
+                    H2Database.copySchema(source, target);
+                }
+            }
+        }
+        persistenceUnit.setBackgroundCleaner(
+            new BackgroundCleaner(persistenceUnit.getName(), dataSource, nativeCleanPlan));
+    }
+
+    public void installDirtyTableTracking(CachedPersistenceUnit persistenceUnit) throws SQLException {
+        if (!persistenceUnit.getConnectionSettings().isH2()) {
+            LOGGER.warn("dirty-table tracking is only supported for h2-databases");
+            return;
+        }
+        persistenceUnit.ensureSchema();
+        try (Connection connection = persistenceUnit.openConnection()) {
+            List<String> tables = H2Database.listTables(connection);
+            H2Database.installDirtyTableTriggers(connection, tables);
+            String database = connection.getCatalog();
+            // whatever the provider inserted during bootstrap has to be removed by the first clean
+            DirtyTableTrigger.markDirty(database, tables);
+            persistenceUnit.setTrackedDatabase(database);
+        }
+    }
+
+    /**
+     * rolls back the transaction the pinned connection of a rollback-isolated test is in
+     *
+     * @return false if the tables have to be cleared instead
+     */
+    public boolean rollback(CachedPersistenceUnit persistenceUnit) {
+        long start = System.currentTimeMillis();
+        try {
+            persistenceUnit.getDataSource().unpin();
+        } catch (SQLException e) {
+            LOGGER.error("could not roll back test-transaction, clearing tables instead", e);
+            return false;
+        }
+        persistenceUnit.evictCaches();
+        if (persistenceUnit.getTrackedDatabase() != null) {
+            DirtyTableTrigger.drainDirtyTables(persistenceUnit.getTrackedDatabase());
+        }
+        LOGGER.info("rolled back database in {} ms", System.currentTimeMillis() - start);
+        return true;
+    }
+
+    /**
+     * switches the unit to a clean database or clears the tables, and evicts the caches of the provider
+     *
+     * @return false if the database could not be cleared, so the unit has to be rebuilt
+     */
+    public boolean clean(CachedPersistenceUnit persistenceUnit) {
+        BackgroundCleaner backgroundCleaner = persistenceUnit.getBackgroundCleaner();
+        if (backgroundCleaner != null && backgroundCleaner.hasFailed()) {
+            // a database the background-thread could not clear is only gone with the whole unit
+            return false;
+        }
+        return swapDatabase(persistenceUnit) || clearTables(persistenceUnit);
+    }
+
+    /**
+     * switches the unit to a clean database, if it has a {@link BackgroundCleaner}, and evicts the caches of the
+     * provider
+     *
+     * @return false if the database has to be cleared right away
+     */
+    private boolean swapDatabase(CachedPersistenceUnit persistenceUnit) {
+        BackgroundCleaner backgroundCleaner = persistenceUnit.getBackgroundCleaner();
+        if (backgroundCleaner == null) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            backgroundCleaner.swap();
+        } catch (SQLException e) {
+            LOGGER.warn("could not switch to a clean database, clearing the tables instead", e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        persistenceUnit.evictCaches();
+        LOGGER.info("switched to a clean database in {} ms", System.currentTimeMillis() - start);
+        return true;
+    }
+
+    /**
+     * clears the tables and evicts the caches of the provider, so no cached state survives the clean
+     *
+     * @return false if the database could not be cleared
+     */
+    private boolean clearTables(CachedPersistenceUnit persistenceUnit) {
+        try {
+            return clearTablesOnly(persistenceUnit);
+        } finally {
+            persistenceUnit.evictCaches();
+        }
+    }
+
+    private boolean clearTablesOnly(CachedPersistenceUnit persistenceUnit) {
+        long start = System.currentTimeMillis();
+        Collection<String> tables = null;
+        if (persistenceUnit.getTrackedDatabase() != null) {
+            tables = DirtyTableTrigger.drainDirtyTables(persistenceUnit.getTrackedDatabase());
+            if (tables.isEmpty()) {
+                LOGGER.debug("no tables were written, skipped cleaning {}", persistenceUnit.getName());
+                return true;
+            }
+        }
+        if (cleanMode == CleanMode.TRUNCATE && truncateTables(persistenceUnit, tables)) {
+            LOGGER.info("cleared database in {} ms", System.currentTimeMillis() - start);
+            return true;
+        }
+        if (deleteTables(persistenceUnit, tables)) {
+            LOGGER.info("cleared database in {} ms", System.currentTimeMillis() - start);
+            return true;
+        }
+        EntityManager entityManager = persistenceUnit.createEntityManager();
+        Exception failure;
+        try {
+            if (deleteInPlannedOrder(entityManager, persistenceUnit.getCleanPlan())) {
+                failure = null;
+            } else {
+                failure = deleteByProbing(entityManager, persistenceUnit.getCleanPlan());
+            }
+        } finally {
+            entityManager.close();
+        }
+        if (persistenceUnit.getTrackedDatabase() != null) {
+            // setting references to null fires the triggers, which must not mark the tables for the next test
+            DirtyTableTrigger.drainDirtyTables(persistenceUnit.getTrackedDatabase());
+        }
+        // entities the provider cannot delete are removed with referential-integrity turned off
+        if (failure != null && !truncateTables(persistenceUnit, null)) {
+            LOGGER.error("could not clean database of persistence-unit {}, it is rebuilt for the next test",
+                persistenceUnit.getName(), failure);
+            return false;
+        }
+        LOGGER.info("cleared database in {} ms", System.currentTimeMillis() - start);
+        return true;
+    }
+
+    /**
+     * @param tables the tables to truncate, or null to truncate all tables
+     * @return false if the database is not an h2-database or truncating failed
+     */
+    private boolean truncateTables(CachedPersistenceUnit persistenceUnit, Collection<String> tables) {
+        ConnectionSettings connectionSettings = persistenceUnit.getConnectionSettings();
+        if (!connectionSettings.isH2()) {
+            return false;
+        }
+        try (Connection connection = persistenceUnit.openConnection()) {
+            H2Database.truncate(connection, tables != null ? tables : H2Database.listTables(connection));
+        } catch (SQLException e) {
+            LOGGER.warn("could not truncate tables of persistence-unit {}", persistenceUnit.getName(), e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param tables the tables to clear, or null to clear all mapped tables
+     * @return false if the mapping of the provider cannot be read or deleting failed
+     */
+    private boolean deleteTables(CachedPersistenceUnit persistenceUnit, Collection<String> tables) {
+        try (Connection connection = persistenceUnit.openConnection()) {
+            NativeCleanPlan nativeCleanPlan = persistenceUnit.getNativeCleanPlan(connection);
+            if (nativeCleanPlan == null) {
+                return false;
+            }
+            nativeCleanPlan.delete(connection, tables);
+        } catch (SQLException e) {
+            LOGGER.warn("could not delete the content of the tables, falling back to deleting entities", e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * deletes all entities in a single transaction following the precomputed plan
+     *
+     * @return false if the plan could not be applied, e.g. because of cyclic references
+     */
+    private boolean deleteInPlannedOrder(EntityManager entityManager, CleanPlan cleanPlan) {
+        if (!cleanPlan.isComplete()) {
+            return false;
+        }
+        try {
+            entityManager.getTransaction().begin();
+            for (String name : cleanPlan.getEntityNames()) {
+                entityManager.createQuery("DELETE FROM " + name).executeUpdate();
+            }
+            entityManager.getTransaction().commit();
+            return true;
+        } catch (Exception e) {
+            LOGGER.debug("could not clean database in planned order, falling back to probing", e);
+            if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Retries deleting the remaining entities until referential-integrity errors stop. When no more entities can be
+     * deleted, the references between the remaining entities are set to null once, which breaks cycles of
+     * (nullable) references.
+     *
+     * @return null if all entities were deleted, or the first error preventing the deletion
+     */
+    private Exception deleteByProbing(EntityManager entityManager, CleanPlan cleanPlan) {
+        List<String> entityNames = new ArrayList<>(cleanPlan.getEntityNames());
+        int lastsize = entityNames.size();
+        boolean referencesCleared = false;
+        while (!entityNames.isEmpty()) {
+            Iterator<String> iterator = entityNames.iterator();
+            Collection<Exception> exceptionsDuringClean = new ArrayList<>();
+            while (iterator.hasNext()) {
+                String name = iterator.next();
+                try {
+                    entityManager.getTransaction().begin();
+                    entityManager.createQuery("DELETE FROM " + name).executeUpdate();
+                    entityManager.getTransaction().commit();
+                    iterator.remove();
+                } catch (Exception e) {
+                    if (isDeleteFailure(e)) {
+                        exceptionsDuringClean.add(e);
+                        LOGGER.debug("error during delete, could be normal", e);
+                        entityManager.getTransaction().rollback();
+                    }
+                }
+            }
+            if (entityNames.size() == lastsize) {
+                if (referencesCleared || !clearReferences(entityManager, cleanPlan, entityNames)) {
+                    return exceptionsDuringClean.iterator().next();
+                }
+                referencesCleared = true;
+            }
+            lastsize = entityNames.size();
+        }
+        return null;
+    }
+
+    /**
+     * sets all references from the given entities to other entities to null
+     *
+     * @return false if a reference could not be cleared, e.g. because it is not nullable
+     */
+    private boolean clearReferences(EntityManager entityManager, CleanPlan cleanPlan, Collection<String> entityNames) {
+        try {
+            entityManager.getTransaction().begin();
+            for (String name : entityNames) {
+                for (String reference : cleanPlan.getReferences(name)) {
+                    entityManager.createQuery("UPDATE " + name + " e SET e." + reference + " = NULL").executeUpdate();
+                }
+            }
+            entityManager.getTransaction().commit();
+            LOGGER.debug("cleared references of {} to break reference-cycles", entityNames);
+            return true;
+        } catch (Exception e) {
+            LOGGER.debug("could not clear references of {}", entityNames, e);
+            if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
+            return false;
+        }
+    }
+
+    private boolean isDeleteFailure(Exception e) {
+        return e instanceof PersistenceException
+            || e.getClass().getName().equals("org.eclipse.persistence.exceptions.DatabaseException"); // for eclipse-link < 2.5.0
+    }
+}
@@ -0,0 +1,444 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.persistence.Column;
+import javax.persistence.JoinColumn;
+import javax.persistence.Table;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.SingularAttribute;
+
+import org.h2.tools.Csv;
+
+/**
+ * Streams CSV-files into the tables of a persistence-unit with JDBC-batches, bypassing the persistence-context.
+ *
+ * A file is mapped to a table by its name without the extension, which is either the name of an entity or the name of
+ * a table (e.g. a join-table). The header-line of the file names the columns, either by the attributes of the entity
+ * or by the columns of the table. Tables are loaded in the order of their foreign-keys, referenced tables first.
+ * Rows are read and inserted one batch at a time, so datasets do not have to fit into memory.
+ *
+ * Reference-cycles between the tables are broken by inserting the foreign-keys within the cycle as null and setting
+ * them with a second pass over the files, which requires nullable foreign-keys and the primary-key in the files.
+ * Other cycles are only loaded with referential-integrity turned off, which commits the connection and is
+ * therefore not allowed in a rollback-isolated test.
+ *
+ * Every batch is committed on its own, so a failed load leaves the rows of the previous batches in the tables.
+ */
+class DatasetLoader {
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final Metamodel metamodel;
+    private final boolean referentialIntegrityRequired;
+
+    /**
+     * @param referentialIntegrityRequired true if referential-integrity must not be turned off, because the
+     *                                     connection is in a transaction that must not be committed
+     */
+    DatasetLoader(Metamodel metamodel, boolean referentialIntegrityRequired) {
+        this.metamodel = metamodel;
+        this.referentialIntegrityRequired = referentialIntegrityRequired;
+    }
+
+    public void load(Connection connection, List<Path> files) throws SQLException, IOException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        Map<String, List<TableName>> tables = TableName.listTables(metaData);
+        String defaultSchema = TableName.getDefaultSchema(connection);
+        Map<TableName, Path> datasets = new LinkedHashMap<>();
+        Map<TableName, EntityType<?>> entityTypes = new HashMap<>();
+        for (Path file : files) {
+            String fileName = file.getFileName().toString();
+            if (!fileName.toLowerCase().endsWith(".csv")) {
+                throw new IllegalArgumentException("only CSV-datasets are supported: " + file);
+            }
+            String name = fileName.substring(0, fileName.length() - ".csv".length());
+            EntityType<?> entityType = findEntity(name);
+            TableName table = entityType != null ? findTable(tables, entityType, defaultSchema)
+                : TableName.find(tables, name, defaultSchema);
+            if (table == null) {
+                throw new IllegalArgumentException("no table found for dataset " + file);
+            }
+            datasets.put(table, file);
+            if (entityType != null) {
+                entityTypes.put(table, entityType);
+            }
+        }
+        List<TableName> order = TableName.sortByForeignKeys(metaData, datasets.keySet());
+        Set<TableName> cyclic = new LinkedHashSet<>(datasets.keySet());
+        cyclic.removeAll(order);
+        Map<TableName, Set<String>> deferred = new HashMap<>();
+        boolean disableReferentialIntegrity = false;
+        for (TableName table : cyclic) {
+            Set<String> references = listDeferrableReferences(metaData, table, cyclic,
+                readHeader(metaData, table, entityTypes.get(table), datasets.get(table)));
+            if (references == null) {
+                disableReferentialIntegrity = metaData.getURL().startsWith("jdbc:h2:");
+            } else {
+                deferred.put(table, references);
+            }
+        }
+        if (disableReferentialIntegrity) {
+            if (referentialIntegrityRequired) {
+                throw new IllegalStateException("the reference-cycle between the tables " + cyclic + " can only be "
+                    + "loaded with nullable foreign-keys and the primary-keys in the datasets in tests with "
+                    + "rollback-isolation");
+            }
+            deferred.clear();
+        }
+        order.addAll(cyclic);
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            if (disableReferentialIntegrity) {
+                execute(connection, "SET REFERENTIAL_INTEGRITY FALSE");
+            }
+            for (TableName table : order) {
+                loadTable(connection, metaData, table, entityTypes.get(table), datasets.get(table),
+                    deferred.get(table));
+            }
+            for (Map.Entry<TableName, Set<String>> entry : deferred.entrySet()) {
+                TableName table = entry.getKey();
+                updateReferences(connection, metaData, table, entityTypes.get(table), datasets.get(table),
+                    entry.getValue());
+            }
+        } catch (SQLException | IOException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            if (disableReferentialIntegrity) {
+                execute(connection, "SET REFERENTIAL_INTEGRITY TRUE");
+            }
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * inserts the rows of the file, with null for the given deferred columns
+     */
+    private void loadTable(Connection connection, DatabaseMetaData metaData, TableName table,
+            EntityType<?> entityType, Path file, Set<String> deferred) throws SQLException, IOException {
+        List<String> columns = readHeader(metaData, table, entityType, file);
+        String quote = metaData.getIdentifierQuoteString().trim();
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table.quote(quote)).append(" (");
+        for (int i = 0; i < columns.size(); i++) {
+            sql.append(i > 0 ? ", " : "").append(quote).append(columns.get(i)).append(quote);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.size(); i++) {
+            sql.append(i > 0 ? ", ?" : "?");
+        }
+        sql.append(")");
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+             ResultSet rows = new Csv().read(reader, null);
+             PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            int pending = 0;
+            while (rows.next()) {
+                for (int i = 0; i < columns.size(); i++) {
+                    boolean isDeferred = deferred != null && deferred.contains(columns.get(i).toUpperCase());
+                    statement.setString(i + 1, isDeferred ? null : rows.getString(i + 1));
+                }
+                statement.addBatch();
+                if (++pending == BATCH_SIZE) {
+                    statement.executeBatch();
+                    connection.commit();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                statement.executeBatch();
+            }
+            connection.commit();
+        }
+    }
+
+    /**
+     * sets the deferred columns of the rows inserted by {@link #loadTable}, identified by their primary-key
+     */
+    private void updateReferences(Connection connection, DatabaseMetaData metaData, TableName table,
+            EntityType<?> entityType, Path file, Set<String> deferred) throws SQLException, IOException {
+        List<String> columns = readHeader(metaData, table, entityType, file);
+        Set<String> primaryKey = listPrimaryKey(metaData, table);
+        List<Integer> setIndexes = new ArrayList<>();
+        List<Integer> whereIndexes = new ArrayList<>();
+        for (int i = 0; i < columns.size(); i++) {
+            if (deferred.contains(columns.get(i).toUpperCase())) {
+                setIndexes.add(i);
+            } else if (primaryKey.contains(columns.get(i).toUpperCase())) {
+                whereIndexes.add(i);
+            }
+        }
+        String quote = metaData.getIdentifierQuoteString().trim();
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table.quote(quote)).append(" SET ");
+        for (int i = 0; i < setIndexes.size(); i++) {
+            sql.append(i > 0 ? ", " : "").append(quote).append(columns.get(setIndexes.get(i))).append(quote)
+                .append(" = ?");
+        }
+        for (int i = 0; i < whereIndexes.size(); i++) {
+            sql.append(i > 0 ? " AND " : " WHERE ").append(quote).append(columns.get(whereIndexes.get(i)))
+                .append(quote).append(" = ?");
+        }
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+             ResultSet rows = new Csv().read(reader, null);
+             PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            int pending = 0;
+            while (rows.next()) {
+                boolean hasReference = false;
+                int parameter = 1;
+                for (int index : setIndexes) {
+                    String value = rows.getString(index + 1);
+                    hasReference |= value != null;
+                    statement.setString(parameter++, value);
+                }
+                if (!hasReference) {
+                    continue;
+                }
+                for (int index : whereIndexes) {
+                    statement.setString(parameter++, rows.getString(index + 1));
+                }
+                statement.addBatch();
+                if (++pending == BATCH_SIZE) {
+                    statement.executeBatch();
+                    connection.commit();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                statement.executeBatch();
+            }
+            connection.commit();
+        }
+    }
+
+    /**
+     * the columns named by the header-line of the file
+     */
+    private List<String> readHeader(DatabaseMetaData metaData, TableName table, EntityType<?> entityType, Path file)
+        throws SQLException, IOException {
+        Map<String, String> columns = listColumns(metaData, table);
+        List<String> result = new ArrayList<>();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+             ResultSet rows = new Csv().read(reader, null)) {
+            ResultSetMetaData header = rows.getMetaData();
+            for (int i = 1; i <= header.getColumnCount(); i++) {
+                String column = findColumn(columns, entityType, header.getColumnLabel(i));
+                if (column == null) {
+                    throw new IllegalArgumentException("no column " + header.getColumnLabel(i) + " in table "
+                        + table + " for dataset " + file);
+                }
+                result.add(column);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The upper-case names of the columns of the dataset referencing one of the cyclic tables, or null if the
+     * references cannot be set after inserting the rows, because a column is not nullable or the dataset does not
+     * contain the complete primary-key.
+     */
+    private static Set<String> listDeferrableReferences(DatabaseMetaData metaData, TableName table,
+            Set<TableName> cyclic, List<String> columns) throws SQLException {
+        Set<String> header = new HashSet<>();
+        for (String column : columns) {
+            header.add(column.toUpperCase());
+        }
+        Set<String> result = new HashSet<>();
+        try (ResultSet resultSet = metaData.getImportedKeys(table.catalog, table.schema, table.name)) {
+            while (resultSet.next()) {
+                TableName parent = new TableName(resultSet.getString("PKTABLE_CAT"),
+                    resultSet.getString("PKTABLE_SCHEM"), resultSet.getString("PKTABLE_NAME"));
+                String column = resultSet.getString("FKCOLUMN_NAME").toUpperCase();
+                if (cyclic.contains(parent) && header.contains(column)) {
+                    result.add(column);
+                }
+            }
+        }
+        Set<String> primaryKey = listPrimaryKey(metaData, table);
+        if (primaryKey.isEmpty() || !header.containsAll(primaryKey)) {
+            return null;
+        }
+        try (ResultSet resultSet = metaData.getColumns(table.catalog, table.schema, table.name, "%")) {
+            while (resultSet.next()) {
+                if (result.contains(resultSet.getString("COLUMN_NAME").toUpperCase())
+                        && resultSet.getInt("NULLABLE") == DatabaseMetaData.columnNoNulls) {
+                    return null;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * the upper-case names of the primary-key columns of the table
+     */
+    private static Set<String> listPrimaryKey(DatabaseMetaData metaData, TableName table) throws SQLException {
+        Set<String> result = new HashSet<>();
+        try (ResultSet resultSet = metaData.getPrimaryKeys(table.catalog, table.schema, table.name)) {
+            while (resultSet.next()) {
+                result.add(resultSet.getString("COLUMN_NAME").toUpperCase());
+            }
+        }
+        return result;
+    }
+
+    private EntityType<?> findEntity(String name) {
+        for (EntityType<?> entityType : metamodel.getEntities()) {
+            Class<?> javaType = entityType.getJavaType();
+            if (name.equalsIgnoreCase(entityType.getName()) || name.equalsIgnoreCase(javaType.getSimpleName())
+                    || name.equals(javaType.getName())) {
+                return entityType;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * the table named by the @Table-annotation or the entity-name, of the entity or (for single-table inheritance)
+     * the entities it extends
+     */
+    private static TableName findTable(Map<String, List<TableName>> tables, EntityType<?> entityType,
+            String defaultSchema) throws SQLException {
+        for (Class<?> type = entityType.getJavaType(); type != null; type = type.getSuperclass()) {
+            Table annotation = type.getAnnotation(Table.class);
+            if (annotation != null && !annotation.name().isEmpty()) {
+                String schema = annotation.schema().isEmpty() ? null : annotation.schema();
+                TableName table = TableName.find(tables, schema, annotation.name(), defaultSchema);
+                if (table != null) {
+                    return table;
+                }
+            }
+            String entityName = CleanPlan.retrieveEntityName(type);
+            TableName table = entityName != null ? TableName.find(tables, null, entityName, defaultSchema) : null;
+            if (table != null) {
+                return table;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The column named in the header, either directly or by an attribute of the entity. Columns of attributes are
+     * taken from @Column and @JoinColumn, or follow the default naming of JPA.
+     */
+    private String findColumn(Map<String, String> columns, EntityType<?> entityType, String name) {
+        Attribute<?, ?> attribute = entityType != null ? findAttribute(entityType, name) : null;
+        if (attribute != null) {
+            for (String candidate : getColumnCandidates(attribute)) {
+                String column = columns.get(candidate.toUpperCase());
+                if (column != null) {
+                    return column;
+                }
+            }
+        }
+        return columns.get(name.toUpperCase());
+    }
+
+    private static Attribute<?, ?> findAttribute(ManagedType<?> type, String name) {
+        for (Attribute<?, ?> attribute : type.getAttributes()) {
+            if (attribute.getName().equalsIgnoreCase(name)) {
+                return attribute;
+            }
+        }
+        return null;
+    }
+
+    private List<String> getColumnCandidates(Attribute<?, ?> attribute) {
+        List<String> result = new ArrayList<>();
+        Column column = CleanPlan.getAnnotation(attribute, Column.class);
+        if (column != null && !column.name().isEmpty()) {
+            result.add(column.name());
+        }
+        JoinColumn joinColumn = CleanPlan.getAnnotation(attribute, JoinColumn.class);
+        if (joinColumn != null && !joinColumn.name().isEmpty()) {
+            result.add(joinColumn.name());
+        }
+        result.add(attribute.getName());
+        // not Attribute#isAssociation, which some providers do not implement for to-one attributes
+        Attribute.PersistentAttributeType attributeType = attribute.getPersistentAttributeType();
+        if (attributeType == Attribute.PersistentAttributeType.MANY_TO_ONE
+                || attributeType == Attribute.PersistentAttributeType.ONE_TO_ONE) {
+            String idColumn = getIdColumn(((SingularAttribute<?, ?>) attribute).getType().getJavaType());
+            if (idColumn != null) {
+                result.add(attribute.getName() + "_" + idColumn);
+            }
+        }
+        return result;
+    }
+
+    private String getIdColumn(Class<?> target) {
+        EntityType<?> entityType;
+        try {
+            entityType = metamodel.entity(target);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        for (SingularAttribute<?, ?> attribute : entityType.getSingularAttributes()) {
+            if (attribute.isId()) {
+                Column column = CleanPlan.getAnnotation(attribute, Column.class);
+                return column != null && !column.name().isEmpty() ? column.name() : attribute.getName();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * the columns of the table, keyed by their upper-case names
+     */
+    private static Map<String, String> listColumns(DatabaseMetaData metaData, TableName table) throws SQLException {
+        Map<String, String> result = new HashMap<>();
+        try (ResultSet resultSet = metaData.getColumns(table.catalog, table.schema, table.name, "%")) {
+            while (resultSet.next()) {
+                String column = resultSet.getString("COLUMN_NAME");
+                result.put(column.toUpperCase(), column);
+            }
+        }
+        return result;
+    }
+
+    private static void execute(Connection connection, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+}
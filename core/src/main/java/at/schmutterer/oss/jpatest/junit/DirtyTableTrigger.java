@@ -0,0 +1,97 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.h2.api.Trigger;
+
+/**
+ * h2-trigger recording which tables received an INSERT or UPDATE, so that only these tables have to be cleaned
+ * after a test.
+ *
+ * This class is only public because h2 needs to instantiate it. It is not meant to be used directly.
+ */
+public class DirtyTableTrigger implements Trigger {
+
+    private static final ConcurrentMap<String, Set<String>> DIRTY_TABLES = new ConcurrentHashMap<>();
+
+    private String database;
+    private String table;
+
+    @Override
+    public void init(Connection conn, String schemaName, String triggerName, String tableName, boolean before,
+            int type) throws SQLException {
+        database = conn.getCatalog();
+        table = H2Database.qualify(schemaName, tableName);
+    }
+
+    @Override
+    public void fire(Connection conn, Object[] oldRow, Object[] newRow) throws SQLException {
+        getDirtyTables(database).add(table);
+    }
+
+    @Override
+    public void close() throws SQLException {
+    }
+
+    @Override
+    public void remove() throws SQLException {
+    }
+
+    static void markDirty(String database, Collection<String> tables) {
+        getDirtyTables(database).addAll(tables);
+    }
+
+    /**
+     * returns the tables written since the last call and resets the tracked state
+     */
+    static Set<String> drainDirtyTables(String database) {
+        Set<String> dirtyTables = getDirtyTables(database);
+        synchronized (dirtyTables) {
+            Set<String> result = new HashSet<>(dirtyTables);
+            dirtyTables.clear();
+            return result;
+        }
+    }
+
+    /**
+     * discards the tracked state of a database that is dropped
+     */
+    static void forget(String database) {
+        DIRTY_TABLES.remove(database);
+    }
+
+    private static Set<String> getDirtyTables(String database) {
+        Set<String> dirtyTables = DIRTY_TABLES.get(database);
+        if (dirtyTables == null) {
+            DIRTY_TABLES.putIfAbsent(database, Collections.synchronizedSet(new HashSet<String>()));
+            dirtyTables = DIRTY_TABLES.get(database);
+        }
+        return dirtyTables;
+    }
+}
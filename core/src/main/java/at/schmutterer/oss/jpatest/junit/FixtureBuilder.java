@@ -0,0 +1,177 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.metamodel.EntityType;
+
+/**
+ * Persists large object-graphs in chunks: after every {@code chunkSize} entities the persistence-context is flushed,
+ * the transaction committed and the persistence-context cleared, so neither dirty-checking nor memory grow with the
+ * size of the fixture. Persisted entities are represented by {@link FixtureReference}s, which can be turned into
+ * references for associations of entities persisted later with {@link #reference(FixtureReference)}.
+ *
+ * <pre>
+ * try (FixtureBuilder fixture = testPersistenceUnit.buildFixture("my-persistence-unit")) {
+ *     FixtureReference&lt;Person&gt; person = fixture.persist(new Person("Alice"));
+ *     for (int i = 0; i &lt; 50000; i++) {
+ *         fixture.persist(new Order(fixture.reference(person)));
+ *     }
+ * }
+ * </pre>
+ */
+public final class FixtureBuilder implements AutoCloseable {
+
+    private final EntityManager entityManager;
+    private final PersistenceUnitUtil persistenceUnitUtil;
+    private final int chunkSize;
+    private final List<FixtureReference<?>> pending = new ArrayList<>();
+    private int persisted;
+
+    FixtureBuilder(EntityManager entityManager, int chunkSize) {
+        this.entityManager = entityManager;
+        this.persistenceUnitUtil = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+        this.chunkSize = chunkSize;
+        entityManager.getTransaction().begin();
+    }
+
+    /**
+     * persists the entity (and everything cascaded from it) in the current chunk
+     */
+    public <T> FixtureReference<T> persist(T entity) {
+        entityManager.persist(entity);
+        @SuppressWarnings("unchecked")
+        FixtureReference<T> reference = new FixtureReference<>(this, (Class<T>) entity.getClass(), entity);
+        pending.add(reference);
+        if (++persisted % chunkSize == 0) {
+            finishChunk();
+            entityManager.getTransaction().begin();
+        }
+        return reference;
+    }
+
+    /**
+     * persists all entities, and returns their ids
+     */
+    public List<Object> persistAll(Iterable<?> entities) {
+        List<FixtureReference<?>> references = new ArrayList<>();
+        for (Object entity : entities) {
+            references.add(persist(entity));
+        }
+        List<Object> result = new ArrayList<>(references.size());
+        for (FixtureReference<?> reference : references) {
+            result.add(reference.getId());
+        }
+        return result;
+    }
+
+    /**
+     * an instance of the referenced entity that can be assigned to associations of entities persisted in the
+     * current chunk
+     */
+    public <T> T reference(FixtureReference<T> reference) {
+        T entity = reference.getEntity();
+        if (entity != null) {
+            return entity;
+        }
+        return entityManager.getReference(reference.getType(), reference.getId());
+    }
+
+    /**
+     * the EntityManager of the current chunk, e.g. to run queries while building the fixture
+     */
+    public EntityManager getEntityManager() {
+        return entityManager;
+    }
+
+    void resolve(FixtureReference<?> reference) {
+        Object id = getIdentifier(reference.getEntity());
+        if (id == null) {
+            // the id is generated by the database
+            entityManager.flush();
+            id = getIdentifier(reference.getEntity());
+        }
+        reference.resolved(id);
+        pending.remove(reference);
+    }
+
+    /**
+     * The id of the entity. OpenJPA does not report the ids of entities that are not enhanced, so the id-attribute
+     * is read directly for these.
+     */
+    private Object getIdentifier(Object entity) {
+        Object id = persistenceUnitUtil.getIdentifier(entity);
+        if (id != null) {
+            return id;
+        }
+        EntityType<?> entityType = entityManager.getMetamodel().entity(entity.getClass());
+        if (!entityType.hasSingleIdAttribute()) {
+            return null;
+        }
+        Member member = entityType.getId(entityType.getIdType().getJavaType()).getJavaMember();
+        try {
+            if (member instanceof Field) {
+                Field field = (Field) member;
+                field.setAccessible(true);
+                return field.get(entity);
+            }
+            if (member instanceof Method) {
+                Method method = (Method) member;
+                method.setAccessible(true);
+                return method.invoke(entity);
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new PersistenceException("could not read the id of " + entity, e);
+        }
+        return null;
+    }
+
+    private void finishChunk() {
+        entityManager.flush();
+        for (FixtureReference<?> reference : pending) {
+            reference.resolved(getIdentifier(reference.getEntity()));
+        }
+        pending.clear();
+        entityManager.getTransaction().commit();
+        entityManager.clear();
+    }
+
+    /**
+     * persists the last chunk, unless the transaction was marked for rollback by a failure
+     */
+    @Override
+    public void close() {
+        if (!entityManager.getTransaction().isActive()) {
+            return;
+        }
+        if (entityManager.getTransaction().getRollbackOnly()) {
+            entityManager.getTransaction().rollback();
+            return;
+        }
+        finishChunk();
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+/**
+ * Lightweight handle of an entity persisted with a {@link FixtureBuilder}, which stays valid after the entity was
+ * detached from the persistence-context.
+ */
+public final class FixtureReference<T> {
+
+    private final FixtureBuilder builder;
+    private final Class<T> type;
+    private T entity;
+    private Object id;
+
+    FixtureReference(FixtureBuilder builder, Class<T> type, T entity) {
+        this.builder = builder;
+        this.type = type;
+        this.entity = entity;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * the id of the entity, flushing the current chunk if the id is only assigned by the database
+     */
+    public Object getId() {
+        if (entity != null) {
+            builder.resolve(this);
+        }
+        return id;
+    }
+
+    /**
+     * the managed entity while its chunk is still open, or null
+     */
+    T getEntity() {
+        return entity;
+    }
+
+    void resolved(Object id) {
+        this.id = id;
+        this.entity = null;
+    }
+
+    @Override
+    public String toString() {
+        return type.getSimpleName() + "#" + (entity != null ? "(pending)" : id);
+    }
+}
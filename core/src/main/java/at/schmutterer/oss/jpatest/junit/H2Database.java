@@ -0,0 +1,394 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.h2.engine.Constants;
+
+/**
+ * native operations on the h2-databases backing the persistence-units
+ */
+final class H2Database {
+
+    /**
+     * tables the providers use for table-based id-generation. Their content has to survive cleaning the database,
+     * because the providers keep allocated id-blocks in memory.
+     */
+    private static final Set<String> SEQUENCE_TABLES = new HashSet<>(Arrays.asList(
+        "OPENJPA_SEQUENCE_TABLE", // OpenJPA
+        "SEQUENCE", // EclipseLink
+        "HIBERNATE_SEQUENCES" // Hibernate
+    ));
+
+    /**
+     * Helpers the INSERT-statements of a script use to insert large objects piece by piece. They are created
+     * before the statements of an image are replayed and dropped afterwards, because creating and dropping them
+     * commits the running transaction.
+     */
+    private static final List<String> LOB_HELPERS = Arrays.asList(
+        "DROP TABLE IF EXISTS SYSTEM_LOB_STREAM",
+        "CREATE TABLE SYSTEM_LOB_STREAM(ID INT NOT NULL, PART INT NOT NULL, CDATA VARCHAR, BDATA BINARY, "
+            + "PRIMARY KEY(ID, PART))",
+        "CREATE ALIAS IF NOT EXISTS SYSTEM_COMBINE_CLOB FOR \"org.h2.command.dml.ScriptCommand.combineClob\"",
+        "CREATE ALIAS IF NOT EXISTS SYSTEM_COMBINE_BLOB FOR \"org.h2.command.dml.ScriptCommand.combineBlob\""
+    );
+    private static final List<String> LOB_HELPERS_CLEANUP = Arrays.asList(
+        "DROP TABLE IF EXISTS SYSTEM_LOB_STREAM",
+        "CALL SYSTEM_COMBINE_BLOB(-1)",
+        "DROP ALIAS IF EXISTS SYSTEM_COMBINE_CLOB",
+        "DROP ALIAS IF EXISTS SYSTEM_COMBINE_BLOB"
+    );
+
+    private H2Database() {
+    }
+
+    /**
+     * quoted and schema-qualified names of all data-tables in the database
+     */
+    public static List<String> listTables(Connection connection) throws SQLException {
+        List<String> result = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT TABLE_SCHEMA, TABLE_NAME FROM INFORMATION_SCHEMA.TABLES "
+                 + "WHERE TABLE_TYPE = 'TABLE' AND TABLE_SCHEMA <> 'INFORMATION_SCHEMA'")) {
+            while (resultSet.next()) {
+                String tableName = resultSet.getString(2);
+                if (SEQUENCE_TABLES.contains(tableName)) {
+                    continue;
+                }
+                result.add(qualify(resultSet.getString(1), tableName));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Truncates all given tables with referential-integrity turned off. TRUNCATE and SET REFERENTIAL_INTEGRITY are
+     * not transactional in h2, every statement commits on its own, so a failure leaves the tables before the failing
+     * one truncated.
+     */
+    public static void truncate(Connection connection, Collection<String> tables) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SET REFERENTIAL_INTEGRITY FALSE");
+            try {
+                for (String table : tables) {
+                    statement.addBatch("TRUNCATE TABLE " + table);
+                }
+                statement.executeBatch();
+            } finally {
+                statement.execute("SET REFERENTIAL_INTEGRITY TRUE");
+            }
+        }
+    }
+
+    /**
+     * number of bytes used by the pages of the database, or an estimate of the heap used by the rows if it is not
+     * stored in pages
+     */
+    public static long getSize(Connection connection) throws SQLException {
+        long pageCount = -1;
+        long pageSize = -1;
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT NAME, VALUE FROM INFORMATION_SCHEMA.SETTINGS "
+                 + "WHERE NAME IN ('info.PAGE_COUNT', 'info.PAGE_SIZE')")) {
+            while (resultSet.next()) {
+                long value = Long.parseLong(resultSet.getString(2));
+                if ("info.PAGE_COUNT".equals(resultSet.getString(1))) {
+                    pageCount = value;
+                } else {
+                    pageSize = value;
+                }
+            }
+        }
+        return pageCount < 0 || pageSize < 0 ? estimateHeapSize(connection) : pageCount * pageSize;
+    }
+
+    /**
+     * The number of rows times the memory h2 accounts for a row with a value per column. Indexes and the content of
+     * variable-length values are not included.
+     */
+    private static long estimateHeapSize(Connection connection) throws SQLException {
+        Map<String, Integer> columnCounts = new HashMap<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT TABLE_SCHEMA, TABLE_NAME, COUNT(*) "
+                 + "FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA <> 'INFORMATION_SCHEMA' "
+                 + "GROUP BY TABLE_SCHEMA, TABLE_NAME")) {
+            while (resultSet.next()) {
+                columnCounts.put(qualify(resultSet.getString(1), resultSet.getString(2)), resultSet.getInt(3));
+            }
+        }
+        long result = 0;
+        try (Statement statement = connection.createStatement()) {
+            for (String table : listTables(connection)) {
+                try (ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+                    resultSet.next();
+                    Integer columnCount = columnCounts.get(table);
+                    int valueSize = Constants.MEMORY_POINTER + Constants.MEMORY_OBJECT;
+                    result += resultSet.getLong(1) * (Constants.MEMORY_ROW
+                        + (columnCount != null ? columnCount : 0) * valueSize);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Captures the content of all data-tables as a compressed list of INSERT-statements.
+     * Sequences and sequence-tables are not part of the image, so ids allocated later never collide
+     * with restored rows.
+     */
+    public static byte[] createImage(Connection connection) throws SQLException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SCRIPT NOPASSWORDS NOSETTINGS");
+             DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            while (resultSet.next()) {
+                String sql = resultSet.getString(1);
+                if (isDataStatement(sql)) {
+                    byte[] encoded = sql.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(encoded.length);
+                    out.write(encoded);
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException("could not write database-image", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replaces the content of all data-tables with the content captured by {@link #createImage(Connection)}.
+     * The tables are cleared with DELETE and the image is replayed in one transaction, so a failed restore leaves
+     * the previous content in place.
+     */
+    public static void restoreImage(Connection connection, byte[] image) throws SQLException {
+        List<String> statements = readImage(image);
+        boolean usesLobHelpers = false;
+        for (String sql : statements) {
+            usesLobHelpers |= usesLobHelpers(sql);
+        }
+        List<String> tables = listTables(connection);
+        boolean autoCommit = connection.getAutoCommit();
+        try (Statement statement = connection.createStatement()) {
+            // both commit, so they have to run before the transaction starts
+            statement.execute("SET REFERENTIAL_INTEGRITY FALSE");
+            try {
+                if (usesLobHelpers) {
+                    for (String sql : LOB_HELPERS) {
+                        statement.execute(sql);
+                    }
+                }
+                connection.setAutoCommit(false);
+                try {
+                    for (String table : tables) {
+                        statement.execute("DELETE FROM " + table);
+                    }
+                    for (String sql : statements) {
+                        statement.execute(sql);
+                    }
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(autoCommit);
+                }
+            } finally {
+                try {
+                    if (usesLobHelpers) {
+                        for (String sql : LOB_HELPERS_CLEANUP) {
+                            statement.execute(sql);
+                        }
+                    }
+                } finally {
+                    statement.execute("SET REFERENTIAL_INTEGRITY TRUE");
+                }
+            }
+        }
+    }
+
+    private static List<String> readImage(byte[] image) throws SQLException {
+        List<String> result = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(image)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] encoded = new byte[length];
+                in.readFully(encoded);
+                result.add(new String(encoded, StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            throw new SQLException("could not read database-image", e);
+        }
+        return result;
+    }
+
+    /**
+     * creates the schema of the source-database, including its sequences and sequence-tables, in the (empty)
+     * target-database; the content of the data-tables is not copied
+     */
+    public static void copySchema(Connection source, Connection target) throws SQLException {
+        try (Statement sourceStatement = source.createStatement();
+             ResultSet resultSet = sourceStatement.executeQuery("SCRIPT NOPASSWORDS NOSETTINGS");
+             Statement targetStatement = target.createStatement()) {
+            while (resultSet.next()) {
+                String sql = resultSet.getString(1);
+                if (!isDataStatement(sql) && !usesLobHelpers(sql)) {
+                    targetStatement.execute(sql);
+                }
+            }
+        }
+    }
+
+    /**
+     * Advances the sequences of the target-database to the values of the source-database and replaces the content
+     * of its sequence-tables. The providers keep using the id-blocks they allocated from the source-database, so
+     * the target must not hand out these ids again.
+     */
+    public static void copySequences(Connection source, Connection target) throws SQLException {
+        boolean autoCommit = target.getAutoCommit();
+        target.setAutoCommit(false);
+        try (Statement sourceStatement = source.createStatement();
+             Statement targetStatement = target.createStatement()) {
+            try (ResultSet resultSet = sourceStatement.executeQuery("SELECT SEQUENCE_SCHEMA, SEQUENCE_NAME, "
+                     + "CURRENT_VALUE + INCREMENT FROM INFORMATION_SCHEMA.SEQUENCES")) {
+                while (resultSet.next()) {
+                    targetStatement.addBatch("ALTER SEQUENCE " + qualify(resultSet.getString(1),
+                        resultSet.getString(2)) + " RESTART WITH " + resultSet.getLong(3));
+                }
+            }
+            List<String> sequenceTables = new ArrayList<>();
+            try (ResultSet resultSet = sourceStatement.executeQuery("SELECT TABLE_SCHEMA, TABLE_NAME "
+                     + "FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_TYPE = 'TABLE' "
+                     + "AND TABLE_SCHEMA <> 'INFORMATION_SCHEMA'")) {
+                while (resultSet.next()) {
+                    if (SEQUENCE_TABLES.contains(resultSet.getString(2))) {
+                        sequenceTables.add(qualify(resultSet.getString(1), resultSet.getString(2)));
+                    }
+                }
+            }
+            targetStatement.executeBatch();
+            for (String table : sequenceTables) {
+                targetStatement.execute("DELETE FROM " + table);
+                copyRows(sourceStatement, target, table);
+            }
+            target.commit();
+        } catch (SQLException e) {
+            target.rollback();
+            throw e;
+        } finally {
+            target.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static void copyRows(Statement sourceStatement, Connection target, String table) throws SQLException {
+        try (ResultSet resultSet = sourceStatement.executeQuery("SELECT * FROM " + table)) {
+            int columns = resultSet.getMetaData().getColumnCount();
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" VALUES (");
+            for (int i = 0; i < columns; i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            try (PreparedStatement insert = target.prepareStatement(sql.append(')').toString())) {
+                while (resultSet.next()) {
+                    for (int i = 1; i <= columns; i++) {
+                        insert.setObject(i, resultSet.getObject(i));
+                    }
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * INSERT-statements for data-tables, including the ones filling the helper-table h2 uses in scripts to insert
+     * large objects. The DDL creating and dropping the helpers is left out, see {@link #LOB_HELPERS}.
+     */
+    private static boolean isDataStatement(String sql) {
+        if (!sql.startsWith("INSERT INTO ")) {
+            return false;
+        }
+        String table = sql.substring("INSERT INTO ".length());
+        int end = 0;
+        boolean quoted = false;
+        while (end < table.length() && (quoted || (table.charAt(end) != '(' && table.charAt(end) != ' '
+                && table.charAt(end) != '\n'))) {
+            if (table.charAt(end) == '"') {
+                quoted = !quoted;
+            }
+            end++;
+        }
+        table = table.substring(0, end);
+        String tableName = table.substring(table.lastIndexOf('.') + 1).replace("\"", "");
+        return !SEQUENCE_TABLES.contains(tableName);
+    }
+
+    private static boolean usesLobHelpers(String sql) {
+        return sql.contains("SYSTEM_LOB_STREAM") || sql.contains("SYSTEM_COMBINE_");
+    }
+
+    /**
+     * installs a {@link DirtyTableTrigger} on each of the given tables
+     */
+    public static void installDirtyTableTriggers(Connection connection, Collection<String> tables)
+        throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            int index = 0;
+            for (String table : tables) {
+                String trigger = table.substring(0, table.indexOf('.') + 1) + quote("JPATEST_DIRTY_" + index++);
+                statement.execute("CREATE TRIGGER IF NOT EXISTS " + trigger + " AFTER INSERT, UPDATE ON " + table
+                    + " CALL \"" + DirtyTableTrigger.class.getName() + "\"");
+            }
+        }
+    }
+
+    static String qualify(String schema, String table) {
+        return quote(schema) + "." + quote(table);
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+}
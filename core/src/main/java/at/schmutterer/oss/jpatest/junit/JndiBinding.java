@@ -0,0 +1,67 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.Name;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binds the data-sources of the persistence-units in JNDI, see {@link TestPersistenceUnit#JPATEST_JNDI_NAME}. If no
+ * initial context is configured, the in-memory implementation of directory-naming is used.
+ */
+final class JndiBinding {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JndiBinding.class);
+
+    private JndiBinding() {
+    }
+
+    /**
+     * binds the data-source to the name, creating the missing subcontexts; a data-source bound before is replaced
+     */
+    public static void bind(String jndiName, DataSource dataSource) {
+        if (System.getProperty(Context.INITIAL_CONTEXT_FACTORY) == null) {
+            System.setProperty(Context.INITIAL_CONTEXT_FACTORY, "org.apache.naming.java.javaURLContextFactory");
+            System.setProperty(Context.URL_PKG_PREFIXES, "org.apache.naming");
+        }
+        try {
+            Context context = new InitialContext();
+            Name name = context.getNameParser("").parse(jndiName);
+            for (int i = 1; i < name.size(); i++) {
+                try {
+                    context.createSubcontext(name.getPrefix(i));
+                } catch (NameAlreadyBoundException e) {
+                    // created for another persistence-unit
+                }
+            }
+            context.rebind(name, dataSource);
+            LOGGER.info("bound data-source to {}", jndiName);
+        } catch (NamingException e) {
+            LOGGER.warn("could not bind data-source to " + jndiName, e);
+        }
+    }
+}
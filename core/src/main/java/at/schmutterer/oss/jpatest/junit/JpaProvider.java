@@ -0,0 +1,415 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.spi.PersistenceProvider;
+import javax.persistence.spi.PersistenceProviderResolverHolder;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * the JPA-implementations supported out of the box
+ */
+enum JpaProvider {
+    HIBERNATE("org.hibernate.", "hibernate.") {
+        @Override
+        public void useDataSource(Properties properties, DataSource dataSource) {
+            properties.put("hibernate.connection.datasource", dataSource);
+        }
+
+        @Override
+        public void disableSchemaGeneration(Properties properties) {
+            properties.put("hibernate.hbm2ddl.auto", "none");
+        }
+
+        @Override
+        public void enableSharedCache(Properties properties) {
+            if (!properties.containsKey("hibernate.cache.region.factory_class")) {
+                if (!isAvailable(EHCACHE_REGION_FACTORY)) {
+                    LOGGER.warn("no cache-provider configured with hibernate.cache.region.factory_class, "
+                        + "the shared cache stays disabled");
+                    return;
+                }
+                properties.put("hibernate.cache.region.factory_class", EHCACHE_REGION_FACTORY);
+            }
+            putDefault(properties, "javax.persistence.sharedCache.mode", "ALL");
+            putDefault(properties, "hibernate.cache.use_second_level_cache", "true");
+            putDefault(properties, "hibernate.cache.use_query_cache", "true");
+            putDefault(properties, "hibernate.generate_statistics", "true");
+        }
+
+        @Override
+        public void evictQueryCache(EntityManagerFactory entityManagerFactory) throws ReflectiveOperationException {
+            // the JPA-cache of hibernate only covers entities and collections
+            Object sessionFactory = invoke(entityManagerFactory, "getSessionFactory");
+            invoke(invoke(sessionFactory, "getCache"), "evictQueryRegions");
+        }
+
+        @Override
+        public SharedCacheStatistics getSharedCacheStatistics(EntityManagerFactory entityManagerFactory)
+            throws ReflectiveOperationException {
+            Object statistics = invoke(invoke(entityManagerFactory, "getSessionFactory"), "getStatistics");
+            return new SharedCacheStatistics(getLong(statistics, "getSecondLevelCacheHitCount"),
+                getLong(statistics, "getSecondLevelCacheMissCount"), getLong(statistics, "getSecondLevelCachePutCount"),
+                getLong(statistics, "getQueryCacheHitCount"), getLong(statistics, "getQueryCacheMissCount"),
+                getLong(statistics, "getQueryCachePutCount"));
+        }
+
+        @Override
+        public Collection<String> getMappedTables(EntityManagerFactory entityManagerFactory)
+            throws ReflectiveOperationException {
+            Object sessionFactory = invoke(entityManagerFactory, "getSessionFactory");
+            Set<String> result = new LinkedHashSet<>();
+            // the property-spaces of an entity are the tables of its class-hierarchy and its secondary tables
+            for (Object persister : ((Map<?, ?>) invoke(sessionFactory, "getEntityPersisters")).values()) {
+                addNames(result, (Object[]) invoke(persister, "getPropertySpaces"));
+            }
+            // join-tables and collection-tables
+            for (Object persister : ((Map<?, ?>) invoke(sessionFactory, "getCollectionPersisters")).values()) {
+                addNames(result, (Object[]) invoke(persister, "getCollectionSpaces"));
+            }
+            return result;
+        }
+    },
+    ECLIPSELINK("org.eclipse.persistence.", "eclipselink.") {
+        @Override
+        public void useDataSource(Properties properties, DataSource dataSource) {
+            properties.put("javax.persistence.nonJtaDataSource", dataSource);
+            // EclipseLink prefers the jdbc-properties over a data-source
+            properties.remove("javax.persistence.jdbc.url");
+            properties.remove("javax.persistence.jdbc.driver");
+        }
+
+        @Override
+        public void disableSchemaGeneration(Properties properties) {
+            properties.put("eclipselink.ddl-generation", "none");
+        }
+
+        @Override
+        public void enableSharedCache(Properties properties) {
+            // EclipseLink has no global query-cache, it is enabled per query with the hint query-results-cache
+            putDefault(properties, "javax.persistence.sharedCache.mode", "ALL");
+            putDefault(properties, "eclipselink.cache.shared.default", "true");
+        }
+
+        @Override
+        public void evictQueryCache(EntityManagerFactory entityManagerFactory) throws ReflectiveOperationException {
+            Object serverSession = invoke(entityManagerFactory, "getServerSession");
+            invoke(invoke(serverSession, "getIdentityMapAccessor"), "clearQueryCache");
+        }
+
+        @Override
+        public SharedCacheStatistics getSharedCacheStatistics(EntityManagerFactory entityManagerFactory) {
+            // EclipseLink only counts cache-hits with a performance-monitor, which slows down every query
+            throw new UnsupportedOperationException("EclipseLink does not provide cache-statistics");
+        }
+
+        @Override
+        public Collection<String> getMappedTables(EntityManagerFactory entityManagerFactory)
+            throws ReflectiveOperationException {
+            Object serverSession = invoke(entityManagerFactory, "getServerSession");
+            Set<String> result = new LinkedHashSet<>();
+            for (Object descriptor : ((Map<?, ?>) invoke(serverSession, "getDescriptors")).values()) {
+                if (!(Boolean) invoke(descriptor, "isAggregateDescriptor")
+                    && !(Boolean) invoke(descriptor, "isDescriptorForInterface")) {
+                    addEclipseLinkTables(result, descriptor);
+                }
+            }
+            return result;
+        }
+    },
+    OPENJPA("org.apache.openjpa.", "openjpa.") {
+        @Override
+        public void useDataSource(Properties properties, DataSource dataSource) {
+            properties.put("openjpa.ConnectionFactory", dataSource);
+        }
+
+        @Override
+        public void disableSchemaGeneration(Properties properties) {
+            // removing the property would leave a value configured in the persistence.xml in effect, the empty
+            // value turns the synchronization off
+            properties.put("openjpa.jdbc.SynchronizeMappings", "");
+        }
+
+        @Override
+        public void enableSharedCache(Properties properties) {
+            putDefault(properties, "javax.persistence.sharedCache.mode", "ALL");
+            putDefault(properties, "openjpa.DataCache", "true(EnableStatistics=true)");
+            putDefault(properties, "openjpa.QueryCache", "true(EnableStatistics=true)");
+            putDefault(properties, "openjpa.RemoteCommitProvider", "sjvm");
+        }
+
+        @Override
+        public void evictQueryCache(EntityManagerFactory entityManagerFactory) throws ReflectiveOperationException {
+            invoke(invoke(entityManagerFactory, "getQueryResultCache"), "evictAll");
+        }
+
+        @Override
+        public SharedCacheStatistics getSharedCacheStatistics(EntityManagerFactory entityManagerFactory)
+            throws ReflectiveOperationException {
+            Object statistics = invoke(invoke(entityManagerFactory, "getStoreCache"), "getStatistics");
+            long hits = getLong(statistics, "getTotalHitCount");
+            Object queryStatistics = invoke(invoke(invoke(entityManagerFactory, "getQueryResultCache"), "getDelegate"),
+                "getStatistics");
+            long queryHits = getLong(queryStatistics, "getTotalHitCount");
+            // OpenJPA counts reads and executions, which include the hits, but not the query-results it stores
+            return new SharedCacheStatistics(hits, getLong(statistics, "getTotalReadCount") - hits,
+                getLong(statistics, "getTotalWriteCount"), queryHits,
+                getLong(queryStatistics, "getTotalExecutionCount") - queryHits, -1);
+        }
+
+        @Override
+        public Collection<String> getMappedTables(EntityManagerFactory entityManagerFactory)
+            throws ReflectiveOperationException {
+            Object repository = invoke(invoke(entityManagerFactory, "getConfiguration"),
+                "getMappingRepositoryInstance");
+            Method getMapping = repository.getClass().getMethod("getMapping", Class.class, ClassLoader.class,
+                boolean.class);
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            Set<String> result = new LinkedHashSet<>();
+            for (EntityType<?> entityType : entityManagerFactory.getMetamodel().getEntities()) {
+                Object mapping = getMapping.invoke(repository, entityType.getJavaType(), classLoader, true);
+                addOpenJpaTable(result, invoke(mapping, "getTable"));
+                // fields in secondary-tables, join-tables and collection-tables
+                for (Object field : (Object[]) invoke(mapping, "getFieldMappings")) {
+                    addOpenJpaTable(result, invoke(field, "getTable"));
+                }
+            }
+            return result;
+        }
+    },
+    UNKNOWN("", "") {
+        @Override
+        public void useDataSource(Properties properties, DataSource dataSource) {
+            throw new UnsupportedOperationException("cannot configure a data-source for an unknown provider");
+        }
+
+        @Override
+        public void disableSchemaGeneration(Properties properties) {
+            throw new UnsupportedOperationException("cannot disable schema-generation for an unknown provider");
+        }
+
+        @Override
+        public void enableSharedCache(Properties properties) {
+            putDefault(properties, "javax.persistence.sharedCache.mode", "ALL");
+        }
+
+        @Override
+        public void evictQueryCache(EntityManagerFactory entityManagerFactory) {
+        }
+
+        @Override
+        public SharedCacheStatistics getSharedCacheStatistics(EntityManagerFactory entityManagerFactory) {
+            throw new UnsupportedOperationException("cannot read the cache-statistics of an unknown provider");
+        }
+
+        @Override
+        public Collection<String> getMappedTables(EntityManagerFactory entityManagerFactory) {
+            throw new UnsupportedOperationException("cannot read the mapping of an unknown provider");
+        }
+    };
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JpaProvider.class);
+
+    private static final String EHCACHE_REGION_FACTORY = "org.hibernate.cache.ehcache.EhCacheRegionFactory";
+
+    private static final String[] DATA_SOURCE_KEYS = {
+        "javax.persistence.jtaDataSource",
+        "javax.persistence.nonJtaDataSource",
+        "hibernate.connection.datasource",
+        "openjpa.ConnectionFactory",
+        "openjpa.ConnectionFactoryName",
+    };
+
+    private final String packagePrefix;
+    private final String propertyPrefix;
+
+    JpaProvider(String packagePrefix, String propertyPrefix) {
+        this.packagePrefix = packagePrefix;
+        this.propertyPrefix = propertyPrefix;
+    }
+
+    /**
+     * true if the given property configures one of the other supported providers, every property is relevant
+     * for an unknown provider
+     */
+    public boolean isForeignProperty(String key) {
+        if (this == UNKNOWN) {
+            return false;
+        }
+        for (JpaProvider provider : values()) {
+            if (provider != this && provider != UNKNOWN && key.startsWith(provider.propertyPrefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * makes the provider obtain all its connections from the given data-source
+     */
+    public abstract void useDataSource(Properties properties, DataSource dataSource);
+
+    /**
+     * makes the provider use the existing schema instead of generating it
+     */
+    public abstract void disableSchemaGeneration(Properties properties);
+
+    /**
+     * Enables the shared (second-level) cache and the query-cache, and the statistics of the provider where these
+     * are separate settings. Properties set by the user are kept.
+     */
+    public abstract void enableSharedCache(Properties properties);
+
+    /**
+     * evicts the results of cached queries, which are not covered by {@link javax.persistence.Cache#evictAll()}
+     */
+    public abstract void evictQueryCache(EntityManagerFactory entityManagerFactory)
+        throws ReflectiveOperationException;
+
+    /**
+     * the counters of the shared cache and the query-cache, which are enabled by {@link #enableSharedCache}
+     */
+    public abstract SharedCacheStatistics getSharedCacheStatistics(EntityManagerFactory entityManagerFactory)
+        throws ReflectiveOperationException;
+
+    /**
+     * the names of all tables the entities of the persistence-unit are mapped to, including join-tables,
+     * collection-tables and secondary tables, as declared in the mapping (possibly qualified with a schema)
+     */
+    public abstract Collection<String> getMappedTables(EntityManagerFactory entityManagerFactory)
+        throws ReflectiveOperationException;
+
+    private static void putDefault(Properties properties, String key, String value) {
+        if (!properties.containsKey(key)) {
+            properties.put(key, value);
+        }
+    }
+
+    private static boolean isAvailable(String className) {
+        try {
+            Class.forName(className, false, Thread.currentThread().getContextClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static Object invoke(Object target, String methodName) throws ReflectiveOperationException {
+        return target.getClass().getMethod(methodName).invoke(target);
+    }
+
+    private static long getLong(Object target, String methodName) throws ReflectiveOperationException {
+        return ((Number) invoke(target, methodName)).longValue();
+    }
+
+    private static void addNames(Set<String> result, Object[] names) {
+        for (Object name : names) {
+            result.add(name.toString());
+        }
+    }
+
+    private static void addEclipseLinkTables(Set<String> result, Object descriptor)
+        throws ReflectiveOperationException {
+        for (Object table : (Collection<?>) invoke(descriptor, "getTables")) {
+            result.add((String) invoke(table, "getQualifiedName"));
+        }
+        for (Object mapping : (Collection<?>) invoke(descriptor, "getMappings")) {
+            // join-tables of many-to-many and one-to-many, collection-tables of basic element-collections
+            for (String getter : new String[]{ "getRelationTable", "getReferenceTable" }) {
+                Method method = findMethod(mapping, getter);
+                Object table = method != null ? method.invoke(mapping) : null;
+                if (table != null) {
+                    result.add((String) invoke(table, "getQualifiedName"));
+                }
+            }
+            // collection-tables of embeddable element-collections
+            if ((Boolean) invoke(mapping, "isAggregateCollectionMapping")) {
+                addEclipseLinkTables(result, invoke(mapping, "getReferenceDescriptor"));
+            }
+        }
+    }
+
+    private static void addOpenJpaTable(Set<String> result, Object table) throws ReflectiveOperationException {
+        if (table != null) {
+            result.add((String) invoke(table, "getFullName"));
+        }
+    }
+
+    private static Method findMethod(Object target, String methodName) {
+        try {
+            return target.getClass().getMethod(methodName);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * true if the properties already configure a data-source
+     */
+    public static boolean hasDataSource(Properties properties) {
+        for (String key : DATA_SOURCE_KEYS) {
+            if (properties.containsKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * determines the provider from the persistence.xml or, if it does not declare one,
+     * from the providers available on the classpath
+     */
+    public static JpaProvider detect(String persistenceUnit) {
+        PersistenceXml.Unit unit = PersistenceXml.getPersistenceUnits().get(persistenceUnit);
+        if (unit != null && !unit.getProvider().isEmpty()) {
+            return fromClassName(unit.getProvider());
+        }
+        List<PersistenceProvider> providers =
+            PersistenceProviderResolverHolder.getPersistenceProviderResolver().getPersistenceProviders();
+        for (PersistenceProvider provider : providers) {
+            JpaProvider result = fromClassName(provider.getClass().getName());
+            if (result != UNKNOWN) {
+                return result;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    private static JpaProvider fromClassName(String className) {
+        for (JpaProvider provider : values()) {
+            if (provider != UNKNOWN && className.startsWith(provider.packagePrefix)) {
+                return provider;
+            }
+        }
+        return UNKNOWN;
+    }
+}
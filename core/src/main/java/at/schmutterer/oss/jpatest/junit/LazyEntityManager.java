@@ -0,0 +1,120 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+
+/**
+ * Handle of an EntityManager that is only created on its first real operation. Until then the persistence-unit
+ * is neither bootstrapped nor marked as used by the test, so EntityManagers handed to collaborators that never
+ * touch them do not cause the database to be cleaned.
+ *
+ * {@code isOpen}, {@code close} and the methods of {@link Object} do not create the EntityManager.
+ */
+class LazyEntityManager implements InvocationHandler {
+
+    private final String persistenceUnitName;
+    private final Callable<EntityManager> factory;
+    private final EntityManager proxy;
+    private EntityManager delegate;
+    private boolean closed;
+
+    LazyEntityManager(String persistenceUnitName, Callable<EntityManager> factory) {
+        this.persistenceUnitName = persistenceUnitName;
+        this.factory = factory;
+        this.proxy = (EntityManager) Proxy.newProxyInstance(EntityManager.class.getClassLoader(),
+            new Class<?>[]{ EntityManager.class }, this);
+    }
+
+    /**
+     * the handle passed to the test
+     */
+    public EntityManager getProxy() {
+        return proxy;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                synchronized (this) {
+                    return delegate != null ? delegate.toString()
+                        : "lazy EntityManager of persistence-unit " + persistenceUnitName;
+                }
+            case "isOpen":
+                synchronized (this) {
+                    return delegate != null ? delegate.isOpen() : !closed;
+                }
+            case "close":
+                synchronized (this) {
+                    if (delegate == null) {
+                        if (closed) {
+                            throw new IllegalStateException("EntityManager is closed");
+                        }
+                        closed = true;
+                        return null;
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+        try {
+            return method.invoke(getDelegate(), args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private synchronized EntityManager getDelegate() {
+        if (delegate == null) {
+            if (closed) {
+                throw new IllegalStateException("EntityManager is closed");
+            }
+            try {
+                delegate = factory.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new PersistenceException("could not create EntityManager for persistence-unit "
+                    + persistenceUnitName, e);
+            }
+        }
+        return delegate;
+    }
+
+    /**
+     * closes the handle at the end of the test without creating the EntityManager; a created EntityManager is
+     * closed by its owner
+     */
+    synchronized void detach() {
+        closed = true;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Order in which the tables mapped by a persistence-unit are cleared with native statements.
+ *
+ * The tables are taken from the mapping of the provider, so join-tables, collection-tables and secondary tables are
+ * cleared as well, and ordered by the foreign-keys the database reports: a table is cleared before the tables it
+ * references. Tables in a reference-cycle cannot be ordered, h2-databases clear them with referential-integrity
+ * turned off (see {@link #isComplete()}).
+ */
+class NativeCleanPlan {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NativeCleanPlan.class);
+
+    private final List<TableName> tables;
+    private final String quote;
+    private final boolean complete;
+    private final boolean h2;
+
+    private NativeCleanPlan(List<TableName> tables, String quote, boolean complete, boolean h2) {
+        this.tables = Collections.unmodifiableList(tables);
+        this.quote = quote;
+        this.complete = complete;
+        this.h2 = h2;
+    }
+
+    /**
+     * @param mappedTables the names of the tables as declared in the mapping, see
+     *                     {@link JpaProvider#getMappedTables(javax.persistence.EntityManagerFactory)}
+     */
+    public static NativeCleanPlan create(Connection connection, Collection<String> mappedTables)
+        throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        Map<String, List<TableName>> existingTables = TableName.listTables(metaData);
+        String defaultSchema = TableName.getDefaultSchema(connection);
+        Set<TableName> candidates = new LinkedHashSet<>();
+        for (String mappedTable : mappedTables) {
+            TableName table = TableName.find(existingTables, mappedTable, defaultSchema);
+            if (table == null) {
+                LOGGER.debug("mapped table {} does not exist in the database", mappedTable);
+                continue;
+            }
+            candidates.add(table);
+        }
+        List<TableName> order = TableName.sortByForeignKeys(metaData, candidates);
+        boolean complete = order.size() == candidates.size();
+        Collections.reverse(order);
+        List<TableName> result = new ArrayList<>();
+        // tables in a cycle, and the tables referencing them, go first
+        for (TableName candidate : candidates) {
+            if (!order.contains(candidate)) {
+                result.add(candidate);
+            }
+        }
+        result.addAll(order);
+        return new NativeCleanPlan(result, metaData.getIdentifierQuoteString().trim(), complete,
+            metaData.getURL().startsWith("jdbc:h2:"));
+    }
+
+    /**
+     * deletes the content of the tables in a single batch and transaction
+     *
+     * @param onlyTables quoted and schema-qualified names of the tables to clear, or null to clear all tables
+     */
+    public void delete(Connection connection, Collection<String> onlyTables) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        boolean disableReferentialIntegrity = !complete && h2;
+        try (Statement statement = connection.createStatement()) {
+            if (disableReferentialIntegrity) {
+                statement.execute("SET REFERENTIAL_INTEGRITY FALSE");
+            }
+            try {
+                for (TableName table : tables) {
+                    if (onlyTables == null || onlyTables.contains(table.quote("\""))) {
+                        statement.addBatch("DELETE FROM " + table.quote(quote));
+                    }
+                }
+                statement.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                if (disableReferentialIntegrity) {
+                    statement.execute("SET REFERENTIAL_INTEGRITY TRUE");
+                }
+            }
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    public List<TableName> getTables() {
+        return tables;
+    }
+
+    /**
+     * false if the foreign-keys contain a cycle, so the order could not be fully determined
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+}
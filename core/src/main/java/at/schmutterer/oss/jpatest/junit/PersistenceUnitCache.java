@@ -0,0 +1,231 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.PersistenceException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The persistence-units of the JVM, keyed by the name of their database.
+ *
+ * Concurrent callers asking for the same unit wait for a single bootstrap instead of building their own. Units that
+ * are neither in use by a test nor hold a checkpoint are closed in least-recently-used order when there are more
+ * than {@code maxEntries}, or when the heap in use exceeds {@code maxMemory} bytes. The latter is only an
+ * approximation, as the heap also contains garbage not yet collected. The heap does not shrink before the next
+ * garbage-collection, so at most one unit is evicted for memory whenever a unit is built or released. All remaining
+ * units are closed when the JVM shuts down.
+ */
+class PersistenceUnitCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersistenceUnitCache.class);
+
+    private final ConcurrentMap<String, Future<CachedPersistenceUnit>> entries = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final long maxMemory;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+
+    PersistenceUnitCache(int maxEntries, long maxMemory) {
+        this.maxEntries = maxEntries;
+        this.maxMemory = maxMemory;
+    }
+
+    public void closeOnShutdown() {
+        Runtime.getRuntime().addShutdownHook(new Thread("jpatest-shutdown") {
+            @Override
+            public void run() {
+                LOGGER.debug("closing persistence-units, cache-statistics: {}", getStatistics());
+                closeAll();
+            }
+        });
+    }
+
+    public boolean contains(String databaseName) {
+        return entries.containsKey(databaseName);
+    }
+
+    /**
+     * Returns the unit using the given database, building it with the given loader if necessary. The unit is
+     * acquired for the caller, and is not evicted before it is {@link #release(CachedPersistenceUnit) released}.
+     */
+    public CachedPersistenceUnit acquire(String databaseName, Callable<CachedPersistenceUnit> loader)
+        throws Exception {
+        while (true) {
+            Future<CachedPersistenceUnit> future = entries.get(databaseName);
+            boolean built = false;
+            if (future == null) {
+                FutureTask<CachedPersistenceUnit> task = new FutureTask<>(loader);
+                future = entries.putIfAbsent(databaseName, task);
+                if (future == null) {
+                    future = task;
+                    misses.incrementAndGet();
+                    task.run();
+                    built = true;
+                }
+            }
+            if (!built) {
+                hits.incrementAndGet();
+            }
+            CachedPersistenceUnit persistenceUnit;
+            try {
+                persistenceUnit = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PersistenceException("interrupted while waiting for persistence-unit " + databaseName, e);
+            } catch (ExecutionException e) {
+                // let the next call try again
+                entries.remove(databaseName, future);
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new PersistenceException(cause);
+            }
+            synchronized (this) {
+                if (entries.get(databaseName) == future) {
+                    persistenceUnit.acquire(clock.incrementAndGet());
+                    if (built) {
+                        evictIfNecessary();
+                    }
+                    return persistenceUnit;
+                }
+            }
+            // evicted while waiting for it
+        }
+    }
+
+    public void release(CachedPersistenceUnit persistenceUnit) {
+        if (persistenceUnit.release() == 0) {
+            synchronized (this) {
+                if (persistenceUnit.isInvalidated()) {
+                    persistenceUnit.close();
+                    return;
+                }
+                evictIfNecessary();
+            }
+        }
+    }
+
+    /**
+     * Removes the unit from the cache, so the next caller builds it anew. The unit is closed, and its database
+     * dropped, as soon as all its users released it.
+     */
+    public synchronized void invalidate(CachedPersistenceUnit persistenceUnit) {
+        for (Map.Entry<String, Future<CachedPersistenceUnit>> entry : entries.entrySet()) {
+            if (getIfDone(entry.getValue()) == persistenceUnit) {
+                entries.remove(entry.getKey(), entry.getValue());
+                evictions.incrementAndGet();
+                LOGGER.info("invalidated persistence-unit using database {}", entry.getKey());
+            }
+        }
+        persistenceUnit.invalidate();
+        if (!persistenceUnit.isInUse()) {
+            persistenceUnit.close();
+        }
+    }
+
+    public CacheStatistics getStatistics() {
+        return new CacheStatistics(hits.get(), misses.get(), evictions.get(), entries.size());
+    }
+
+    private void evictIfNecessary() {
+        while (entries.size() > maxEntries) {
+            if (!evictEldest()) {
+                return;
+            }
+        }
+        if (maxMemory > 0 && usedMemory() > maxMemory) {
+            evictEldest();
+        }
+    }
+
+    /**
+     * @return false if all units are in use or hold a checkpoint
+     */
+    private boolean evictEldest() {
+        Map.Entry<String, Future<CachedPersistenceUnit>> eldest = null;
+        long eldestAccess = Long.MAX_VALUE;
+        for (Map.Entry<String, Future<CachedPersistenceUnit>> entry : entries.entrySet()) {
+            CachedPersistenceUnit persistenceUnit = getIfDone(entry.getValue());
+            // a checkpoint would not survive the eviction
+            if (persistenceUnit != null && !persistenceUnit.isInUse() && persistenceUnit.getCheckpoint() == null
+                    && persistenceUnit.getLastAccess() < eldestAccess) {
+                eldest = entry;
+                eldestAccess = persistenceUnit.getLastAccess();
+            }
+        }
+        if (eldest == null) {
+            LOGGER.debug("all {} cached persistence-units are in use, none can be evicted", entries.size());
+            return false;
+        }
+        entries.remove(eldest.getKey(), eldest.getValue());
+        evictions.incrementAndGet();
+        LOGGER.info("evicting persistence-unit using database {}", eldest.getKey());
+        getIfDone(eldest.getValue()).close();
+        return true;
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * closes all units that are already built
+     */
+    public synchronized void closeAll() {
+        List<Future<CachedPersistenceUnit>> futures = new ArrayList<>(entries.values());
+        entries.clear();
+        for (Future<CachedPersistenceUnit> future : futures) {
+            CachedPersistenceUnit persistenceUnit = getIfDone(future);
+            if (persistenceUnit != null) {
+                persistenceUnit.close();
+            }
+        }
+    }
+
+    private static CachedPersistenceUnit getIfDone(Future<CachedPersistenceUnit> future) {
+        if (!future.isDone()) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
+}
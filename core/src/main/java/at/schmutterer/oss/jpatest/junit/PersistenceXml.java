@@ -0,0 +1,158 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * reads the persistence-units declared in all META-INF/persistence.xml files visible to the context-classloader
+ */
+final class PersistenceXml {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersistenceXml.class);
+    private static final String PERSISTENCE_XML = "META-INF/persistence.xml";
+
+    private static Map<String, Unit> persistenceUnits;
+
+    private PersistenceXml() {
+    }
+
+    /**
+     * all declared persistence-units by name
+     */
+    public static synchronized Map<String, Unit> getPersistenceUnits() {
+        if (persistenceUnits == null) {
+            persistenceUnits = Collections.unmodifiableMap(readPersistenceUnits());
+        }
+        return persistenceUnits;
+    }
+
+    private static Map<String, Unit> readPersistenceUnits() {
+        Map<String, Unit> result = new LinkedHashMap<>();
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        if (classLoader == null) {
+            classLoader = PersistenceXml.class.getClassLoader();
+        }
+        try {
+            Enumeration<URL> resources = classLoader.getResources(PERSISTENCE_XML);
+            while (resources.hasMoreElements()) {
+                URL url = resources.nextElement();
+                try {
+                    readPersistenceUnits(url, result);
+                } catch (IOException | ParserConfigurationException | SAXException e) {
+                    LOGGER.warn("unable to read " + url, e);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("unable to find " + PERSISTENCE_XML, e);
+        }
+        return result;
+    }
+
+    private static void readPersistenceUnits(URL url, Map<String, Unit> result)
+        throws IOException, ParserConfigurationException, SAXException {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document document;
+        try (InputStream inputStream = url.openStream()) {
+            document = factory.newDocumentBuilder().parse(inputStream);
+        }
+        NodeList units = document.getElementsByTagNameNS("*", "persistence-unit");
+        for (int i = 0; i < units.getLength(); i++) {
+            Element unit = (Element) units.item(i);
+            String name = unit.getAttribute("name");
+            List<String> providers = readElements(unit, "provider");
+            String provider = providers.isEmpty() ? "" : providers.get(0);
+            result.put(name, new Unit(name, provider, url, readElements(unit, "class"), readElements(unit, "jar-file")));
+        }
+    }
+
+    private static List<String> readElements(Element unit, String tagName) {
+        List<String> result = new ArrayList<>();
+        NodeList elements = unit.getElementsByTagNameNS("*", tagName);
+        for (int i = 0; i < elements.getLength(); i++) {
+            result.add(elements.item(i).getTextContent().trim());
+        }
+        return result;
+    }
+
+    /**
+     * a persistence-unit as declared in a persistence.xml
+     */
+    static final class Unit {
+
+        private final String name;
+        private final String provider;
+        private final URL persistenceXml;
+        private final List<String> classes;
+        private final List<String> jarFiles;
+
+        private Unit(String name, String provider, URL persistenceXml, List<String> classes, List<String> jarFiles) {
+            this.name = name;
+            this.provider = provider;
+            this.persistenceXml = persistenceXml;
+            this.classes = Collections.unmodifiableList(classes);
+            this.jarFiles = Collections.unmodifiableList(jarFiles);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * the declared provider-class, or an empty string if the unit does not declare one
+         */
+        public String getProvider() {
+            return provider;
+        }
+
+        /**
+         * the persistence.xml declaring the unit
+         */
+        public URL getPersistenceXml() {
+            return persistenceXml;
+        }
+
+        public List<String> getClasses() {
+            return classes;
+        }
+
+        public List<String> getJarFiles() {
+            return jarFiles;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.io.File;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * all registered {@link TestPhaseListener}s
+ */
+final class PhaseListeners {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PhaseListeners.class);
+
+    private static final List<TestPhaseListener> LISTENERS = new CopyOnWriteArrayList<>();
+
+    static {
+        for (TestPhaseListener listener : ServiceLoader.load(TestPhaseListener.class)) {
+            LISTENERS.add(listener);
+        }
+        String reportFile = System.getProperty(TestPersistenceUnit.JPATEST_REPORT);
+        if (reportFile != null) {
+            PhaseReport report = new PhaseReport(PhaseReport.forCurrentProcess(new File(reportFile)));
+            LISTENERS.add(report);
+            report.writeOnShutdown();
+        }
+    }
+
+    private PhaseListeners() {
+    }
+
+    public static void add(TestPhaseListener listener) {
+        LISTENERS.add(listener);
+    }
+
+    public static void remove(TestPhaseListener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    public static boolean isEmpty() {
+        return LISTENERS.isEmpty();
+    }
+
+    public static void fire(TestPhaseEvent event) {
+        for (TestPhaseListener listener : LISTENERS) {
+            try {
+                listener.phaseFinished(event);
+            } catch (RuntimeException e) {
+                LOGGER.warn("listener " + listener + " failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects all phase-events of the JVM and writes them to a file when the JVM exits.
+ * Files ending with ".csv" are written as CSV, all others as a JSON-array.
+ *
+ * Every JVM writes its own file, named after the configured file with the id of the process inserted before the
+ * extension, so the forks of a test-run do not overwrite each other's report.
+ */
+class PhaseReport implements TestPhaseListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PhaseReport.class);
+
+    private final File file;
+    private final Queue<TestPhaseEvent> events = new ConcurrentLinkedQueue<>();
+
+    PhaseReport(File file) {
+        this.file = file;
+    }
+
+    /**
+     * the given file with the id of the current process inserted before the extension, e.g. "report-1234.csv"
+     */
+    static File forCurrentProcess(File file) {
+        // "pid@host" on all common JVMs
+        String process = ManagementFactory.getRuntimeMXBean().getName();
+        int at = process.indexOf('@');
+        String pid = at > 0 ? process.substring(0, at) : process;
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String processName = dot > 0 ? name.substring(0, dot) + "-" + pid + name.substring(dot) : name + "-" + pid;
+        return new File(file.getParentFile(), processName);
+    }
+
+    @Override
+    public void phaseFinished(TestPhaseEvent event) {
+        events.add(event);
+    }
+
+    public void writeOnShutdown() {
+        Runtime.getRuntime().addShutdownHook(new Thread("jpatest-report") {
+            @Override
+            public void run() {
+                write();
+            }
+        });
+    }
+
+    public void write() {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            LOGGER.warn("could not create directory {}", directory);
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            if (file.getName().endsWith(".csv")) {
+                writeCsv(writer);
+            } else {
+                writeJson(writer);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("could not write report " + file, e);
+        }
+    }
+
+    private void writeCsv(Writer writer) throws IOException {
+        writer.write("test,persistenceUnit,phase,cacheHit,millis\n");
+        for (TestPhaseEvent event : events) {
+            writer.write(csv(event.getTestName()) + "," + csv(event.getPersistenceUnit()) + "," + event.getPhase()
+                + "," + event.isCacheHit() + "," + millis(event) + "\n");
+        }
+    }
+
+    private void writeJson(Writer writer) throws IOException {
+        writer.write("[");
+        String separator = "\n";
+        for (TestPhaseEvent event : events) {
+            writer.write(separator + "{\"test\":" + json(event.getTestName())
+                + ",\"persistenceUnit\":" + json(event.getPersistenceUnit())
+                + ",\"phase\":\"" + event.getPhase() + "\""
+                + ",\"cacheHit\":" + event.isCacheHit()
+                + ",\"millis\":" + millis(event) + "}");
+            separator = ",\n";
+        }
+        writer.write("\n]\n");
+    }
+
+    private static String millis(TestPhaseEvent event) {
+        return String.format(Locale.ROOT, "%.3f", event.getDurationNanos() / 1000000.0);
+    }
+
+    private static String csv(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+
+    private static String json(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder result = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < 0x20) {
+                result.append(String.format("\\u%04x", (int) c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.append('"').toString();
+    }
+}
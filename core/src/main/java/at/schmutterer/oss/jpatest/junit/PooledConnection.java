@@ -0,0 +1,326 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A physical connection of the {@link TestDataSource}-pool together with its cache of prepared statements.
+ *
+ * The pool hands out logical connections created by {@link #open()}. Closing a logical connection returns the
+ * physical connection to the pool, closing a prepared statement obtained from it returns the statement to the cache.
+ * Statements and their result-sets report the logical connection as theirs, so the physical connection never leaks
+ * to the user.
+ */
+class PooledConnection {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PooledConnection.class);
+
+    private final Connection connection;
+    private final TestDataSource pool;
+    private final int database;
+    private final int initialTransactionIsolation;
+    /**
+     * idle cached statements by the arguments they were prepared with, in LRU-order
+     */
+    private final LinkedHashMap<List<Object>, PreparedStatement> statementCache;
+
+    PooledConnection(Connection connection, TestDataSource pool, int database, final int statementCacheSize)
+        throws SQLException {
+        this.connection = connection;
+        this.pool = pool;
+        this.database = database;
+        this.initialTransactionIsolation = connection.getTransactionIsolation();
+        this.statementCache = new LinkedHashMap<List<Object>, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, PreparedStatement> eldest) {
+                if (size() <= statementCacheSize) {
+                    return false;
+                }
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * a logical connection to hand out to a single user
+     */
+    public Connection open() {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ Connection.class },
+            new LogicalConnectionHandler());
+    }
+
+    /**
+     * the physical connection, for operations of jpatest itself
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * index of the database of the {@link TestDataSource} the connection is connected to
+     */
+    public int getDatabase() {
+        return database;
+    }
+
+    /**
+     * ends whatever the last user left behind, so the connection can be handed out again
+     *
+     * @return false if the connection is not usable anymore
+     */
+    public boolean reset() {
+        try {
+            if (connection.isClosed()) {
+                return false;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            if (connection.isReadOnly()) {
+                connection.setReadOnly(false);
+            }
+            if (connection.getTransactionIsolation() != initialTransactionIsolation) {
+                connection.setTransactionIsolation(initialTransactionIsolation);
+            }
+            connection.clearWarnings();
+            return true;
+        } catch (SQLException e) {
+            LOGGER.debug("discarding broken connection", e);
+            return false;
+        }
+    }
+
+    public void close() {
+        synchronized (statementCache) {
+            for (PreparedStatement statement : statementCache.values()) {
+                closeQuietly(statement);
+            }
+            statementCache.clear();
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOGGER.debug("could not close connection", e);
+        }
+    }
+
+    private PreparedStatement prepare(Connection logicalConnection, Method method, Object[] args) throws Throwable {
+        List<Object> key = Arrays.asList(args);
+        PreparedStatement statement;
+        synchronized (statementCache) {
+            statement = statementCache.remove(key);
+        }
+        if (statement == null) {
+            statement = (PreparedStatement) invoke(connection, method, args);
+        }
+        return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[]{ method.getReturnType() }, new StatementHandler(logicalConnection, statement, this, key));
+    }
+
+    /**
+     * a proxy of the statement (of the given type) that reports the given connection as its connection
+     */
+    static Statement wrap(Connection logicalConnection, Class<?> type, Statement statement) {
+        return (Statement) Proxy.newProxyInstance(PooledConnection.class.getClassLoader(), new Class<?>[]{ type },
+            new StatementHandler(logicalConnection, statement, null, null));
+    }
+
+    /**
+     * a proxy of the result-set that reports the given statement as its statement
+     */
+    static ResultSet wrap(Statement statement, ResultSet resultSet) {
+        return (ResultSet) Proxy.newProxyInstance(PooledConnection.class.getClassLoader(),
+            new Class<?>[]{ ResultSet.class }, new ResultSetHandler(statement, resultSet));
+    }
+
+    private void release(List<Object> key, PreparedStatement statement) {
+        try {
+            statement.clearParameters();
+            statement.clearBatch();
+            statement.clearWarnings();
+            statement.setMaxRows(0);
+            statement.setQueryTimeout(0);
+        } catch (SQLException e) {
+            closeQuietly(statement);
+            return;
+        }
+        PreparedStatement replaced;
+        synchronized (statementCache) {
+            replaced = statementCache.put(key, statement);
+        }
+        if (replaced != null) {
+            closeQuietly(replaced);
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            LOGGER.debug("could not close statement", e);
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private final class LogicalConnectionHandler implements InvocationHandler {
+
+        private boolean closed;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        pool.release(PooledConnection.this);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("connection is closed");
+            }
+            if (method.getName().equals("prepareStatement")) {
+                return prepare((Connection) proxy, method, args);
+            }
+            Object result = PooledConnection.invoke(connection, method, args);
+            if (result instanceof Statement) {
+                return wrap((Connection) proxy, method.getReturnType(), (Statement) result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A statement of a logical connection. Prepared statements of a {@link PooledConnection} are returned to its
+     * cache instead of being closed.
+     */
+    private static final class StatementHandler implements InvocationHandler {
+
+        private final Connection logicalConnection;
+        private final Statement statement;
+        private final PooledConnection cache;
+        private final List<Object> key;
+        private boolean closed;
+
+        private StatementHandler(Connection logicalConnection, Statement statement, PooledConnection cache,
+                List<Object> key) {
+            this.logicalConnection = logicalConnection;
+            this.statement = statement;
+            this.cache = cache;
+            this.key = key;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        if (cache != null) {
+                            cache.release(key, (PreparedStatement) statement);
+                        } else {
+                            statement.close();
+                        }
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || statement.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("statement is closed");
+            }
+            if (method.getName().equals("getConnection")) {
+                return logicalConnection;
+            }
+            Object result = PooledConnection.invoke(statement, method, args);
+            if (result instanceof ResultSet) {
+                return wrap((Statement) proxy, (ResultSet) result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * a result-set reporting the statement-proxy it was obtained from
+     */
+    private static final class ResultSetHandler implements InvocationHandler {
+
+        private final Statement statement;
+        private final ResultSet resultSet;
+
+        private ResultSetHandler(Statement statement, ResultSet resultSet) {
+            this.statement = statement;
+            this.resultSet = resultSet;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "getStatement":
+                    return statement;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return PooledConnection.invoke(resultSet, method, args);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Property-files parsed once for all tests of the JVM. A file is only parsed again when its modification-time
+ * changes.
+ */
+final class PropertyFiles {
+
+    private static final ConcurrentMap<String, ParsedFile> PARSED_FILES = new ConcurrentHashMap<>();
+
+    private PropertyFiles() {
+    }
+
+    /**
+     * the properties in the given file, shared by all callers, so they must not be modified
+     */
+    public static Properties load(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        ParsedFile parsedFile = PARSED_FILES.get(path);
+        if (parsedFile == null || parsedFile.lastModified != lastModified) {
+            Properties properties = new Properties();
+            try (FileReader fileReader = new FileReader(file)) {
+                properties.load(fileReader);
+            }
+            parsedFile = new ParsedFile(lastModified, properties);
+            PARSED_FILES.put(path, parsedFile);
+        }
+        return parsedFile.properties;
+    }
+
+    private static final class ParsedFile {
+
+        private final long lastModified;
+        private final Properties properties;
+
+        private ParsedFile(long lastModified, Properties properties) {
+            this.lastModified = lastModified;
+            this.properties = properties;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import javax.persistence.spi.PersistenceProvider;
+import javax.persistence.spi.PersistenceProviderResolverHolder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Directory of schema-templates, scripts of freshly bootstrapped h2-databases, that are shared between test-runs.
+ *
+ * A template is identified by a fingerprint of everything the generated schema depends on: the persistence.xml,
+ * the bytecode of the entity-classes, the effective properties and the versions of h2 and the providers on the
+ * classpath. When the fingerprint of a persistence-unit matches an existing template, the template is loaded into
+ * the database and the provider is started without generating the schema.
+ */
+class SchemaTemplateCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SchemaTemplateCache.class);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+
+    SchemaTemplateCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param properties the effective properties of the unit; properties only naming the database, and the
+     *                   properties of jpatest itself, do not influence the fingerprint
+     */
+    public String fingerprint(String persistenceUnit, Properties properties) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        update(digest, persistenceUnit);
+        update(digest, org.h2.engine.Constants.getFullVersion());
+        List<PersistenceProvider> providers =
+            PersistenceProviderResolverHolder.getPersistenceProviderResolver().getPersistenceProviders();
+        for (PersistenceProvider provider : providers) {
+            update(digest, provider.getClass().getName());
+            CodeSource codeSource = provider.getClass().getProtectionDomain().getCodeSource();
+            if (codeSource != null && codeSource.getLocation() != null) {
+                update(digest, codeSource.getLocation().toString());
+            }
+        }
+        Map<String, String> sortedProperties = new TreeMap<>();
+        for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+            String key = entry.getKey().toString();
+            if (entry.getValue() instanceof String && !isIgnoredProperty(key)) {
+                sortedProperties.put(key, (String) entry.getValue());
+            }
+        }
+        for (Map.Entry<String, String> entry : sortedProperties.entrySet()) {
+            update(digest, entry.getKey() + "=" + entry.getValue());
+        }
+        PersistenceXml.Unit unit = PersistenceXml.getPersistenceUnits().get(persistenceUnit);
+        if (unit != null) {
+            updateWithUnit(digest, unit);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static boolean isIgnoredProperty(String key) {
+        return key.startsWith("jpatest.")
+            || key.equals(TestPersistenceUnit.JPATEST_SERVER_PORT)
+            || ConnectionSettings.isUrlProperty(key)
+            || key.equals("eclipselink.session-name");
+    }
+
+    private void updateWithUnit(MessageDigest digest, PersistenceXml.Unit unit) {
+        URL persistenceXml = unit.getPersistenceXml();
+        try {
+            update(digest, readBytes(persistenceXml));
+            String location = persistenceXml.toString();
+            URL root = new URL(location.substring(0, location.length() - "META-INF/persistence.xml".length()));
+            updateWithArchive(digest, root);
+            for (String jarFile : unit.getJarFiles()) {
+                updateWithArchive(digest, new URL(root, jarFile));
+            }
+        } catch (IOException | URISyntaxException e) {
+            LOGGER.warn("could not read all classes of persistence-unit {}, its fingerprint may be incomplete",
+                unit.getName(), e);
+        }
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        for (String className : unit.getClasses()) {
+            URL classFile = classLoader.getResource(className.replace('.', '/') + ".class");
+            if (classFile == null) {
+                continue;
+            }
+            try {
+                update(digest, readBytes(classFile));
+            } catch (IOException e) {
+                LOGGER.warn("could not read class {}, the fingerprint may be incomplete", className, e);
+            }
+        }
+    }
+
+    /**
+     * hashes a jar-file as a whole, or every class-file in a directory
+     */
+    private static void updateWithArchive(final MessageDigest digest, URL archive)
+        throws IOException, URISyntaxException {
+        if ("file".equals(archive.getProtocol())) {
+            final Path root = new File(archive.toURI()).toPath();
+            if (!Files.isDirectory(root)) {
+                if (Files.isRegularFile(root)) {
+                    update(digest, Files.readAllBytes(root));
+                }
+                return;
+            }
+            final List<Path> classFiles = new ArrayList<>();
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (file.toString().endsWith(".class")) {
+                        classFiles.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            Collections.sort(classFiles);
+            for (Path classFile : classFiles) {
+                update(digest, root.relativize(classFile).toString());
+                update(digest, Files.readAllBytes(classFile));
+            }
+        } else if ("jar".equals(archive.getProtocol())) {
+            URLConnection connection = archive.openConnection();
+            if (connection instanceof JarURLConnection) {
+                updateWithArchive(digest, ((JarURLConnection) connection).getJarFileURL());
+            }
+        } else {
+            LOGGER.debug("cannot read classes from {}", archive);
+        }
+    }
+
+    /**
+     * loads the template with the given fingerprint into the (empty) database
+     *
+     * @return false if there is no such template, or it could not be loaded
+     */
+    public boolean load(String fingerprint, ConnectionSettings connectionSettings) {
+        File template = getTemplate(fingerprint);
+        if (!template.isFile()) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        try (Connection connection = connectionSettings.openConnection();
+             Statement statement = connection.createStatement()) {
+            try {
+                statement.execute("RUNSCRIPT FROM " + quoteLiteral(template.getAbsolutePath()));
+            } catch (SQLException e) {
+                LOGGER.warn("could not load schema-template {}, generating the schema instead", template, e);
+                statement.execute("DROP ALL OBJECTS");
+                return false;
+            }
+        } catch (SQLException e) {
+            LOGGER.warn("could not load schema-template {}, generating the schema instead", template, e);
+            return false;
+        }
+        LOGGER.info("loaded schema-template {} in {} ms", template.getName(), System.currentTimeMillis() - start);
+        return true;
+    }
+
+    /**
+     * stores the current state of the database as template with the given fingerprint
+     */
+    public void store(String fingerprint, ConnectionSettings connectionSettings) {
+        File template = getTemplate(fingerprint);
+        try {
+            Files.createDirectories(directory.toPath());
+            // write to a temporary file first, so concurrent test-runs never see a partial template
+            File temporary = File.createTempFile(template.getName(), ".tmp", directory);
+            try {
+                try (Connection connection = connectionSettings.openConnection();
+                     Statement statement = connection.createStatement()) {
+                    statement.execute("SCRIPT NOPASSWORDS NOSETTINGS TO "
+                        + quoteLiteral(temporary.getAbsolutePath()));
+                }
+                Files.move(temporary.toPath(), template.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temporary.toPath());
+            }
+            LOGGER.info("stored schema-template {}", template);
+        } catch (IOException | SQLException e) {
+            LOGGER.warn("could not store schema-template {}", template, e);
+        }
+    }
+
+    private File getTemplate(String fingerprint) {
+        return new File(directory, fingerprint + ".sql");
+    }
+
+    private static byte[] readBytes(URL url) throws IOException {
+        try (InputStream in = url.openStream()) {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                result.write(buffer, 0, read);
+            }
+            return result.toByteArray();
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        update(digest, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void update(MessageDigest digest, byte[] value) {
+        // length-prefix every value, so concatenations cannot collide
+        int length = value.length;
+        digest.update(new byte[]{(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8),
+            (byte) length});
+        digest.update(value);
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            result[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            result[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(result);
+    }
+
+    private static String quoteLiteral(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+}
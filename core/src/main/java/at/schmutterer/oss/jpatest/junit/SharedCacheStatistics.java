@@ -0,0 +1,92 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+/**
+ * Snapshot of the counters the provider keeps for its shared (second-level) cache and its query-cache, see
+ * {@link TestPersistenceUnit#getSharedCacheStatistics(String)}. The counters cover the whole lifetime of the
+ * EntityManagerFactory, counters the provider does not keep are -1.
+ */
+public final class SharedCacheStatistics {
+
+    private final long hits;
+    private final long misses;
+    private final long puts;
+    private final long queryHits;
+    private final long queryMisses;
+    private final long queryPuts;
+
+    SharedCacheStatistics(long hits, long misses, long puts, long queryHits, long queryMisses, long queryPuts) {
+        this.hits = hits;
+        this.misses = misses;
+        this.puts = puts;
+        this.queryHits = queryHits;
+        this.queryMisses = queryMisses;
+        this.queryPuts = queryPuts;
+    }
+
+    /**
+     * number of entities found in the shared cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * number of entities looked up in the shared cache, but loaded from the database
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * number of entities put into the shared cache
+     */
+    public long getPuts() {
+        return puts;
+    }
+
+    /**
+     * number of query-results found in the query-cache
+     */
+    public long getQueryHits() {
+        return queryHits;
+    }
+
+    /**
+     * number of cacheable queries executed against the database
+     */
+    public long getQueryMisses() {
+        return queryMisses;
+    }
+
+    /**
+     * number of query-results put into the query-cache
+     */
+    public long getQueryPuts() {
+        return queryPuts;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits + ", misses=" + misses + ", puts=" + puts + ", queryHits=" + queryHits
+            + ", queryMisses=" + queryMisses + ", queryPuts=" + queryPuts;
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * wraps connections so every statement executed with them is recorded in a {@link StatementStatistics}
+ */
+final class StatementCounter {
+
+    private StatementCounter() {
+    }
+
+    public static Connection wrap(Connection connection, StatementStatistics statistics) {
+        return (Connection) Proxy.newProxyInstance(StatementCounter.class.getClassLoader(),
+            new Class<?>[]{ Connection.class }, new ConnectionHandler(connection, statistics));
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static final class ConnectionHandler implements InvocationHandler {
+
+        private final Connection connection;
+        private final StatementStatistics statistics;
+
+        private ConnectionHandler(Connection connection, StatementStatistics statistics) {
+            this.connection = connection;
+            this.statistics = statistics;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            Object result = StatementCounter.invoke(connection, method, args);
+            if (result instanceof Statement && Statement.class.isAssignableFrom(method.getReturnType())) {
+                // prepareStatement and prepareCall get the sql as first argument, createStatement with execution
+                String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+                return Proxy.newProxyInstance(StatementCounter.class.getClassLoader(),
+                    new Class<?>[]{ method.getReturnType() },
+                    new StatementHandler((Connection) proxy, result, sql, statistics));
+            }
+            return result;
+        }
+    }
+
+    private static final class StatementHandler implements InvocationHandler {
+
+        private final Connection connection;
+        private final Object statement;
+        private final String preparedSql;
+        private final StatementStatistics statistics;
+        private final List<String> batch = new ArrayList<>();
+
+        private StatementHandler(Connection connection, Object statement, String preparedSql,
+                StatementStatistics statistics) {
+            this.connection = connection;
+            this.statement = statement;
+            this.preparedSql = preparedSql;
+            this.statistics = statistics;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : preparedSql;
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "getConnection":
+                    return connection;
+                case "execute":
+                case "executeQuery":
+                case "executeUpdate":
+                case "executeLargeUpdate":
+                    if (sql != null) {
+                        statistics.record(sql);
+                    }
+                    break;
+                case "addBatch":
+                    if (sql != null) {
+                        batch.add(sql);
+                    }
+                    break;
+                case "clearBatch":
+                    batch.clear();
+                    break;
+                case "executeBatch":
+                case "executeLargeBatch":
+                    try {
+                        return StatementCounter.invoke(statement, method, args);
+                    } finally {
+                        statistics.recordBatch(batch);
+                        batch.clear();
+                    }
+                default:
+                    break;
+            }
+            Object result = StatementCounter.invoke(statement, method, args);
+            if (result instanceof ResultSet) {
+                return PooledConnection.wrap((Statement) proxy, (ResultSet) result);
+            }
+            return result;
+        }
+    }
+}
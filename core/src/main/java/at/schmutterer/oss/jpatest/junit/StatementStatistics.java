@@ -0,0 +1,124 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The sql-statements a persistence-unit executed during a test, see
+ * {@link TestPersistenceUnit#getStatementStatistics(String)}.
+ *
+ * Statements issued while cleaning the database are not counted.
+ */
+public final class StatementStatistics {
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?(?![\\w.])");
+    private static final Pattern IN_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final Map<StatementType, Integer> counts = new EnumMap<>(StatementType.class);
+    private final List<Integer> batchSizes = new ArrayList<>();
+    private final Map<String, Integer> selectShapes = new LinkedHashMap<>();
+
+    StatementStatistics() {
+    }
+
+    synchronized void record(String sql) {
+        StatementType type = StatementType.of(sql);
+        Integer count = counts.get(type);
+        counts.put(type, count == null ? 1 : count + 1);
+        if (type == StatementType.SELECT) {
+            String shape = toShape(sql);
+            Integer executions = selectShapes.get(shape);
+            selectShapes.put(shape, executions == null ? 1 : executions + 1);
+        }
+    }
+
+    synchronized void recordBatch(Collection<String> batch) {
+        batchSizes.add(batch.size());
+        for (String sql : batch) {
+            record(sql);
+        }
+    }
+
+    /**
+     * the statement with literals replaced by parameters and parameter-lists collapsed, so the same query
+     * executed with different values has the same shape
+     */
+    static String toShape(String sql) {
+        String shape = STRING_LITERAL.matcher(sql).replaceAll("?");
+        shape = NUMBER_LITERAL.matcher(shape).replaceAll("?");
+        shape = IN_LIST.matcher(shape).replaceAll("(?)");
+        return WHITESPACE.matcher(shape).replaceAll(" ").trim();
+    }
+
+    public synchronized int getCount(StatementType type) {
+        Integer count = counts.get(type);
+        return count == null ? 0 : count;
+    }
+
+    public synchronized int getTotalCount() {
+        int total = 0;
+        for (Integer count : counts.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * the number of statements sent with each executeBatch, in order of execution
+     */
+    public synchronized List<Integer> getBatchSizes() {
+        return Collections.unmodifiableList(new ArrayList<>(batchSizes));
+    }
+
+    /**
+     * Shapes of SELECT-statements that were executed at least {@code minExecutions} times, mapped to their number
+     * of executions. The same query repeated for every row of a previous result usually indicates N+1 loading.
+     */
+    public synchronized Map<String, Integer> getRepeatedSelects(int minExecutions) {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : selectShapes.entrySet()) {
+            if (entry.getValue() >= minExecutions) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    public synchronized void reset() {
+        counts.clear();
+        batchSizes.clear();
+        selectShapes.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "StatementStatistics" + counts + ", batches " + batchSizes;
+    }
+}
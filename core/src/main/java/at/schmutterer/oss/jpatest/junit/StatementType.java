@@ -0,0 +1,54 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.util.Locale;
+
+/**
+ * kinds of sql-statements counted in {@link StatementStatistics}
+ */
+public enum StatementType {
+    SELECT,
+    INSERT,
+    UPDATE,
+    DELETE,
+    OTHER;
+
+    static StatementType of(String sql) {
+        String trimmed = sql.trim();
+        while (trimmed.startsWith("(")) {
+            trimmed = trimmed.substring(1).trim();
+        }
+        String keyword = trimmed.split("\\s", 2)[0].toUpperCase(Locale.ROOT);
+        switch (keyword) {
+            case "SELECT":
+            case "WITH":
+                return SELECT;
+            case "INSERT":
+                return INSERT;
+            case "UPDATE":
+                return UPDATE;
+            case "DELETE":
+                return DELETE;
+            default:
+                return OTHER;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import org.h2.store.fs.FilePath;
+
+/**
+ * where the h2-databases created for the persistence-units keep their data, configured with the property
+ * {@link TestPersistenceUnit#JPATEST_STORAGE_MODE}
+ */
+public enum StorageMode {
+    /**
+     * rows are objects on the heap (default)
+     */
+    HEAP("mem"),
+    /**
+     * pages in an in-memory file-system, a few large byte-arrays instead of many small objects
+     */
+    MEMORY_FS("memFS"),
+    /**
+     * like {@link #MEMORY_FS}, but the pages are compressed
+     */
+    COMPRESSED("memLZF");
+
+    private final String prefix;
+
+    private StorageMode(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * @throws IllegalStateException if the h2-version on the classpath does not support the mode
+     */
+    String getUrl(String databaseName) {
+        // h2 treats unknown prefixes as part of a file-name on disk
+        if (this != HEAP && "file".equals(FilePath.get(prefix + ":" + databaseName).getScheme())) {
+            throw new IllegalStateException("storage-mode " + this + " is not supported by h2 "
+                + org.h2.engine.Constants.getFullVersion());
+        }
+        return "jdbc:h2:" + prefix + ":" + databaseName;
+    }
+
+    /**
+     * true if the database is stored in pages, whose size h2 reports; the size of other databases is estimated
+     */
+    boolean isPageStore() {
+        return this != HEAP;
+    }
+
+    static StorageMode fromString(String mode) {
+        return valueOf(mode.trim().toUpperCase().replace('-', '_'));
+    }
+}
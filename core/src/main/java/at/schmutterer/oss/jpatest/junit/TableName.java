@@ -0,0 +1,193 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * name of a table, as reported by the {@link DatabaseMetaData} of the database
+ */
+final class TableName {
+
+    final String catalog;
+    final String schema;
+    final String name;
+
+    TableName(String catalog, String schema, String name) {
+        this.catalog = catalog;
+        this.schema = schema;
+        this.name = name;
+    }
+
+    /**
+     * the data-tables of the database, keyed by their upper-case names; tables of the same name in different
+     * schemas share a key
+     */
+    static Map<String, List<TableName>> listTables(DatabaseMetaData metaData) throws SQLException {
+        Map<String, List<TableName>> result = new HashMap<>();
+        try (ResultSet resultSet = metaData.getTables(null, null, "%", new String[]{ "TABLE" })) {
+            while (resultSet.next()) {
+                if ("INFORMATION_SCHEMA".equalsIgnoreCase(resultSet.getString("TABLE_SCHEM"))) {
+                    continue;
+                }
+                TableName table = new TableName(resultSet.getString("TABLE_CAT"), resultSet.getString("TABLE_SCHEM"),
+                    resultSet.getString("TABLE_NAME"));
+                List<TableName> sameName = result.get(table.name.toUpperCase());
+                if (sameName == null) {
+                    sameName = new ArrayList<>();
+                    result.put(table.name.toUpperCase(), sameName);
+                }
+                sameName.add(table);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds a table of {@link #listTables(DatabaseMetaData)} by a name as written in a mapping, optionally
+     * qualified with its schema and quoted. Without a schema the table in the default schema is taken, or the only
+     * table of that name.
+     *
+     * @return null if there is no such table
+     * @throws SQLException if an unqualified name matches tables in several schemas, none of them the default
+     */
+    static TableName find(Map<String, List<TableName>> tables, String qualifiedName, String defaultSchema)
+        throws SQLException {
+        String[] parts = qualifiedName.split("\\.");
+        String schema = parts.length > 1 ? unquote(parts[parts.length - 2]) : null;
+        return find(tables, schema, unquote(parts[parts.length - 1]), defaultSchema);
+    }
+
+    /**
+     * @param schema the schema of the table, or null if the name is not qualified
+     * @see #find(Map, String, String)
+     */
+    static TableName find(Map<String, List<TableName>> tables, String schema, String name, String defaultSchema)
+        throws SQLException {
+        List<TableName> sameName = tables.get(name.toUpperCase());
+        if (sameName == null) {
+            return null;
+        }
+        String wantedSchema = schema != null ? schema : defaultSchema;
+        for (TableName table : sameName) {
+            if (table.schema != null && table.schema.equalsIgnoreCase(wantedSchema)) {
+                return table;
+            }
+        }
+        if (schema != null) {
+            return null;
+        }
+        if (sameName.size() == 1) {
+            return sameName.get(0);
+        }
+        throw new SQLException("table " + name + " exists in several schemas: " + sameName);
+    }
+
+    /**
+     * the schema unqualified names are resolved in, or null if the driver does not tell
+     */
+    static String getDefaultSchema(Connection connection) throws SQLException {
+        try {
+            return connection.getSchema();
+        } catch (AbstractMethodError e) {
+            // drivers written before JDBC 4.1, like h2 1.3
+            if (!connection.getMetaData().getURL().startsWith("jdbc:h2:")) {
+                return null;
+            }
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("CALL SCHEMA()")) {
+                return resultSet.next() ? resultSet.getString(1) : null;
+            }
+        }
+    }
+
+    private static String unquote(String name) {
+        if (name.length() > 1 && (name.startsWith("\"") || name.startsWith("`"))) {
+            return name.substring(1, name.length() - 1);
+        }
+        return name;
+    }
+
+    /**
+     * the given tables with every table following the tables it references; tables in a reference-cycle are missing
+     */
+    static List<TableName> sortByForeignKeys(DatabaseMetaData metaData, Set<TableName> tables)
+        throws SQLException {
+        Map<TableName, Set<TableName>> referenced = new HashMap<>();
+        for (TableName table : tables) {
+            Set<TableName> parents = new LinkedHashSet<>();
+            try (ResultSet resultSet = metaData.getImportedKeys(table.catalog, table.schema, table.name)) {
+                while (resultSet.next()) {
+                    TableName parent = new TableName(resultSet.getString("PKTABLE_CAT"),
+                        resultSet.getString("PKTABLE_SCHEM"), resultSet.getString("PKTABLE_NAME"));
+                    if (tables.contains(parent) && !parent.equals(table)) {
+                        parents.add(parent);
+                    }
+                }
+            }
+            referenced.put(table, parents);
+        }
+        List<TableName> result = new ArrayList<>();
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (TableName table : tables) {
+                if (!result.contains(table) && result.containsAll(referenced.get(table))) {
+                    result.add(table);
+                    progress = true;
+                }
+            }
+        }
+        return result;
+    }
+
+    String quote(String quote) {
+        return (schema != null ? quote + schema + quote + "." : "") + quote + name + quote;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TableName)) {
+            return false;
+        }
+        TableName other = (TableName) o;
+        return name.equals(other.name) && (schema == null ? other.schema == null : schema.equals(other.schema));
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return schema != null ? schema + "." + name : name;
+    }
+}
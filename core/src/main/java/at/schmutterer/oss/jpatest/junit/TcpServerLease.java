@@ -0,0 +1,71 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.io.File;
+import java.sql.SQLException;
+
+import org.h2.tools.Server;
+
+/**
+ * The use of one of the {@link TcpServers} by a rule, held from the start to the end of each test.
+ */
+class TcpServerLease {
+
+    private final int port;
+    private final long lingerMillis;
+    private final File portFile;
+    private volatile Server server;
+
+    /**
+     * @param port the port to listen on, or 0 for any free port
+     * @param lingerMillis milliseconds the server keeps running after it was released by all rules
+     * @param portFile file the port of the server is written to, or null
+     */
+    TcpServerLease(int port, long lingerMillis, File portFile) {
+        this.port = port;
+        this.lingerMillis = lingerMillis;
+        this.portFile = portFile;
+    }
+
+    /**
+     * starts the server, or joins the server another rule already started for the port
+     */
+    public synchronized void acquire() throws SQLException {
+        if (server == null) {
+            server = TcpServers.acquire(port, portFile);
+        }
+    }
+
+    public synchronized void release() {
+        if (server != null) {
+            server = null;
+            TcpServers.release(port, lingerMillis);
+        }
+    }
+
+    /**
+     * the port the server listens on, or -1 if it is not acquired
+     */
+    public int getPort() {
+        Server current = server;
+        return current != null ? current.getPort() : -1;
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.h2.tools.Server;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The tcp-servers of h2 shared by all rules of the JVM, one per requested port.
+ *
+ * A server is started when the first rule acquires it and keeps running while any rule uses it. After the last rule
+ * released it, it lingers for a while, so consecutive tests do not bind and unbind the socket over and over. A server
+ * requested for port 0 listens on a free port, which is published as system-property
+ * {@link TestPersistenceUnit#JPATEST_SERVER_ACTUAL_PORT} and, if requested, written to a file. Each server also
+ * publishes its port under that property suffixed with the requested port, so servers for different ports do not
+ * overwrite each other's value.
+ */
+final class TcpServers {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TcpServers.class);
+
+    /**
+     * attempts to start a server on a free port, which another process may take before h2 binds it
+     */
+    private static final int FREE_PORT_ATTEMPTS = 5;
+
+    private static final Map<Integer, SharedServer> SERVERS = new HashMap<>();
+
+    private static final ScheduledExecutorService STOPPER = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "jpatest-server-stopper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private TcpServers() {
+    }
+
+    /**
+     * the running server for the requested port, which is started if necessary
+     *
+     * @param port the port to listen on, or 0 for any free port
+     * @param portFile file the port of the server is written to, or null
+     */
+    public static synchronized Server acquire(int port, File portFile) throws SQLException {
+        SharedServer sharedServer = SERVERS.get(port);
+        if (sharedServer == null) {
+            sharedServer = new SharedServer(start(port));
+            SERVERS.put(port, sharedServer);
+            String actualPort = String.valueOf(sharedServer.server.getPort());
+            System.setProperty(TestPersistenceUnit.JPATEST_SERVER_ACTUAL_PORT + "." + port, actualPort);
+            if (port == 0) {
+                System.setProperty(TestPersistenceUnit.JPATEST_SERVER_ACTUAL_PORT, actualPort);
+            }
+        }
+        if (portFile != null && sharedServer.portFiles.add(portFile)) {
+            writePort(sharedServer.server, portFile);
+        }
+        sharedServer.users++;
+        if (sharedServer.pendingStop != null) {
+            sharedServer.pendingStop.cancel(false);
+            sharedServer.pendingStop = null;
+        }
+        return sharedServer.server;
+    }
+
+    /**
+     * releases a server obtained with {@link #acquire(int, File)}, which is stopped when it is not acquired again
+     * within the given time
+     */
+    public static synchronized void release(final int port, long lingerMillis) {
+        final SharedServer sharedServer = SERVERS.get(port);
+        if (sharedServer == null || --sharedServer.users > 0) {
+            return;
+        }
+        if (lingerMillis <= 0) {
+            stop(port, sharedServer);
+            return;
+        }
+        sharedServer.pendingStop = STOPPER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                stopIfUnused(port, sharedServer);
+            }
+        }, lingerMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized void stopIfUnused(int port, SharedServer sharedServer) {
+        if (SERVERS.get(port) == sharedServer && sharedServer.users == 0) {
+            stop(port, sharedServer);
+        }
+    }
+
+    private static void stop(int port, SharedServer sharedServer) {
+        SERVERS.remove(port);
+        sharedServer.server.stop();
+        LOGGER.info("TCP server on port {} stopped", sharedServer.server.getPort());
+        System.clearProperty(TestPersistenceUnit.JPATEST_SERVER_ACTUAL_PORT + "." + port);
+        if (port == 0) {
+            System.clearProperty(TestPersistenceUnit.JPATEST_SERVER_ACTUAL_PORT);
+        }
+        for (File portFile : sharedServer.portFiles) {
+            if (!portFile.delete()) {
+                LOGGER.debug("could not delete {}", portFile);
+            }
+        }
+    }
+
+    private static Server start(int port) throws SQLException {
+        if (port != 0) {
+            return startOn(port);
+        }
+        for (int attempt = 1; ; attempt++) {
+            int freePort = findFreePort();
+            try {
+                return startOn(freePort);
+            } catch (SQLException e) {
+                if (attempt == FREE_PORT_ATTEMPTS) {
+                    throw e;
+                }
+                LOGGER.debug("port {} was taken before the TCP server could bind it, retrying", freePort, e);
+            }
+        }
+    }
+
+    private static Server startOn(int port) throws SQLException {
+        // daemon-threads, so a lingering server does not keep the JVM alive
+        Server server = Server.createTcpServer("-tcpPort", String.valueOf(port), "-tcpDaemon").start();
+        LOGGER.info("TCP server started on port {}", server.getPort());
+        return server;
+    }
+
+    private static int findFreePort() throws SQLException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new SQLException("could not find a free port for the TCP server", e);
+        }
+    }
+
+    private static void writePort(Server server, File portFile) {
+        try {
+            File directory = portFile.getAbsoluteFile().getParentFile();
+            if (directory != null) {
+                Files.createDirectories(directory.toPath());
+            }
+            Files.write(portFile.toPath(), String.valueOf(server.getPort()).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            LOGGER.warn("could not write the port of the TCP server to {}", portFile, e);
+        }
+    }
+
+    private static final class SharedServer {
+
+        private final Server server;
+        private final Set<File> portFiles = new HashSet<>();
+        private int users;
+        private ScheduledFuture<?> pendingStop;
+
+        private SharedServer(Server server) {
+            this.server = server;
+        }
+    }
+}
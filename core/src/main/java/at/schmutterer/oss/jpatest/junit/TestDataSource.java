@@ -0,0 +1,340 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * The data-source the providers obtain their connections from.
+ *
+ * Connections are pooled: closing a connection returns it to the pool, where up to {@code maxIdle} connections
+ * are kept open together with their cached prepared statements. While a connection is pinned (see {@link #pin()})
+ * all callers share that one physical connection, which is kept inside a transaction until {@link #unpin()} rolls
+ * it back. While statistics are set, the statements executed with the returned connections are counted.
+ *
+ * The data-source may serve several interchangeable databases with the same schema, each with its own pool.
+ * Connections are opened to the current database, which is changed with {@link #switchTo(int)}.
+ */
+class TestDataSource implements DataSource {
+
+    private final List<ConnectionSettings> databases;
+    private final int statementCacheSize;
+    private final List<BlockingDeque<PooledConnection>> idleConnections = new ArrayList<>();
+    private volatile int currentDatabase;
+    private volatile Connection pinnedConnection;
+    private volatile StatementStatistics statistics;
+    private PrintWriter logWriter;
+    private int loginTimeout;
+
+    /**
+     * @param databases the settings of all databases, the first one is the current database initially
+     */
+    TestDataSource(List<ConnectionSettings> databases, int maxIdle, int statementCacheSize) {
+        this.databases = new ArrayList<>(databases);
+        this.statementCacheSize = statementCacheSize;
+        for (int i = 0; i < databases.size(); i++) {
+            idleConnections.add(new LinkedBlockingDeque<PooledConnection>(Math.max(1, maxIdle)));
+        }
+    }
+
+    public int getDatabaseCount() {
+        return databases.size();
+    }
+
+    public ConnectionSettings getConnectionSettings(int database) {
+        return databases.get(database);
+    }
+
+    /**
+     * index of the database connections are opened to
+     */
+    public int getCurrentDatabase() {
+        return currentDatabase;
+    }
+
+    /**
+     * opens all further connections to the given database; connections that are already open keep working with
+     * their database
+     */
+    public synchronized void switchTo(int database) {
+        if (pinnedConnection != null) {
+            throw new IllegalStateException("cannot switch the database while a connection is pinned");
+        }
+        if (database < 0 || database >= databases.size()) {
+            throw new IllegalArgumentException("no database with index " + database);
+        }
+        currentDatabase = database;
+    }
+
+    /**
+     * starts handing out a single shared connection with an open outer transaction
+     */
+    public synchronized void pin() throws SQLException {
+        if (pinnedConnection != null) {
+            return;
+        }
+        Connection connection = openConnection();
+        connection.setAutoCommit(false);
+        pinnedConnection = connection;
+    }
+
+    /**
+     * rolls back everything done with the pinned connection and returns to opening a new connection on every call
+     */
+    public synchronized void unpin() throws SQLException {
+        Connection connection = pinnedConnection;
+        if (connection == null) {
+            return;
+        }
+        pinnedConnection = null;
+        try {
+            connection.rollback();
+        } finally {
+            connection.close();
+        }
+    }
+
+    public boolean isPinned() {
+        return pinnedConnection != null;
+    }
+
+    /**
+     * the statistics statements executed with connections obtained from now on are recorded in,
+     * or null to stop recording
+     */
+    public void setStatistics(StatementStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    public StatementStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * a pooled connection that is neither pinned nor counted, for the operations of jpatest itself
+     */
+    public Connection openConnection() throws SQLException {
+        return openConnection(currentDatabase);
+    }
+
+    /**
+     * a pooled connection to the given database, like {@link #openConnection()}
+     */
+    public Connection openConnection(int database) throws SQLException {
+        PooledConnection pooledConnection = idleConnections.get(database).pollFirst();
+        if (pooledConnection == null) {
+            pooledConnection = new PooledConnection(databases.get(database).openConnection(), this, database,
+                statementCacheSize);
+        }
+        return pooledConnection.open();
+    }
+
+    void release(PooledConnection pooledConnection) {
+        BlockingDeque<PooledConnection> pool = idleConnections.get(pooledConnection.getDatabase());
+        if (!pooledConnection.reset() || !pool.offerFirst(pooledConnection)) {
+            pooledConnection.close();
+        }
+    }
+
+    /**
+     * closes all idle connections
+     */
+    public void close() {
+        for (BlockingDeque<PooledConnection> pool : idleConnections) {
+            PooledConnection pooledConnection;
+            while ((pooledConnection = pool.pollFirst()) != null) {
+                pooledConnection.close();
+            }
+        }
+    }
+
+    /**
+     * a connection taking part in the transaction of the test if the data-source is pinned, whose statements are
+     * not counted
+     */
+    public Connection openTestConnection() throws SQLException {
+        Connection connection = pinnedConnection;
+        if (connection != null) {
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{ Connection.class }, new SavepointConnectionHandler(connection));
+        }
+        return openConnection();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        Connection connection = openTestConnection();
+        StatementStatistics currentStatistics = statistics;
+        if (currentStatistics != null) {
+            return StatementCounter.wrap(connection, currentStatistics);
+        }
+        return connection;
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return getConnection();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return logWriter;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        logWriter = out;
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        loginTimeout = seconds;
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return loginTimeout;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("not a wrapper for " + iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    /**
+     * Maps the transaction-demarcation of a logical connection onto savepoints of the pinned connection.
+     * Closing the logical connection leaves the pinned connection open.
+     */
+    private static final class SavepointConnectionHandler implements InvocationHandler {
+
+        private final Connection connection;
+        private boolean autoCommit = true;
+        private boolean closed;
+        private Savepoint savepoint;
+
+        private SavepointConnectionHandler(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "getAutoCommit":
+                    return autoCommit;
+                case "setAutoCommit":
+                    setAutoCommit((Boolean) args[0]);
+                    return null;
+                case "commit":
+                    releaseSavepoint();
+                    beginIfNecessary();
+                    return null;
+                case "rollback":
+                    if (args == null) {
+                        rollbackToSavepoint();
+                        return null;
+                    }
+                    break;
+                case "close":
+                    closed = true;
+                    return null;
+                case "isClosed":
+                    return closed || connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            Object result;
+            try {
+                result = method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof Statement) {
+                // so that committing through the statement's connection only releases the savepoint
+                return PooledConnection.wrap((Connection) proxy, method.getReturnType(), (Statement) result);
+            }
+            return result;
+        }
+
+        private void setAutoCommit(boolean value) throws SQLException {
+            if (value == autoCommit) {
+                return;
+            }
+            if (value) {
+                // switching back to auto-commit commits the running transaction
+                releaseSavepoint();
+            }
+            autoCommit = value;
+            beginIfNecessary();
+        }
+
+        private void beginIfNecessary() throws SQLException {
+            if (!autoCommit && savepoint == null) {
+                savepoint = connection.setSavepoint();
+            }
+        }
+
+        private void releaseSavepoint() throws SQLException {
+            if (savepoint != null) {
+                connection.releaseSavepoint(savepoint);
+                savepoint = null;
+            }
+        }
+
+        private void rollbackToSavepoint() throws SQLException {
+            if (savepoint != null) {
+                connection.rollback(savepoint);
+                savepoint = null;
+            }
+            beginIfNecessary();
+        }
+    }
+}
@@ -67,29 +67,38 @@
 package at.schmutterer.oss.jpatest.junit;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Set;
-import javax.persistence.Embeddable;
-import javax.persistence.Entity;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
-import javax.persistence.MappedSuperclass;
 import javax.persistence.Persistence;
 import javax.persistence.PersistenceException;
-import javax.persistence.metamodel.ManagedType;
+import javax.sql.DataSource;
 
-import org.h2.tools.Server;
 import org.junit.rules.MethodRule;
 import org.junit.runners.model.FrameworkMethod;
 import org.junit.runners.model.Statement;
@@ -98,7 +107,113 @@ import org.slf4j.LoggerFactory;
 
 public class TestPersistenceUnit implements MethodRule {
 
+    /**
+     * port of the h2 tcp-server started around each test, 0 for any free port. The server is shared by all rules
+     * of the JVM requesting the same port.
+     */
     public static final String JPATEST_SERVER_PORT = "h2.tcp.port";
+    /**
+     * milliseconds the shared tcp-server keeps running after the last test using it finished (default 2000), so it
+     * is not restarted for every test
+     */
+    public static final String JPATEST_SERVER_LINGER = "jpatest.server.linger";
+    /**
+     * file the port of the tcp-server is written to when it is started, for tools connecting from outside the JVM
+     */
+    public static final String JPATEST_SERVER_PORT_FILE = "jpatest.server.portFile";
+    /**
+     * system-property set to the port the tcp-server requested with port 0 actually listens on, while it is running.
+     * Every server also publishes its port as this property suffixed with the requested port, e.g.
+     * "jpatest.server.port.0" or "jpatest.server.port.9092".
+     */
+    public static final String JPATEST_SERVER_ACTUAL_PORT = "jpatest.server.port";
+    /**
+     * name of a {@link CleanMode} used to clear the database after each test
+     */
+    public static final String JPATEST_CLEAN_MODE = "jpatest.clean.mode";
+    /**
+     * where the h2-databases keep their data, one of {@link StorageMode} (default HEAP). For all modes but HEAP
+     * the size of each database is logged before it is cleaned, for HEAP an estimate is logged at debug-level.
+     */
+    public static final String JPATEST_STORAGE_MODE = "jpatest.storage.mode";
+    /**
+     * number of entities a {@link FixtureBuilder} persists before it flushes and clears the persistence-context
+     * (default 500)
+     */
+    public static final String JPATEST_FIXTURE_CHUNK_SIZE = "jpatest.fixture.chunkSize";
+    /**
+     * if "true", the shared (second-level) cache and the query-cache of the provider are enabled, together with
+     * its cache-statistics. The caches are evicted whenever the database is cleaned.
+     */
+    public static final String JPATEST_SHARED_CACHE = "jpatest.sharedCache";
+    /**
+     * if "true", h2-triggers record which tables are written during a test, so only these are cleaned afterwards
+     */
+    public static final String JPATEST_TRACK_DIRTY_TABLES = "jpatest.clean.trackDirtyTables";
+    /**
+     * number of h2-databases with the same schema kept for each persistence-unit (default 1). With more than one,
+     * the database written by a test is cleared on a background-thread while the next test already works with
+     * another, clean database.
+     */
+    public static final String JPATEST_CLEAN_DATABASES = "jpatest.clean.databases";
+    /**
+     * if "true", every test runs inside an outer transaction that is rolled back afterwards, like when annotated
+     * with {@link RollbackIsolation}
+     */
+    public static final String JPATEST_ROLLBACK_ISOLATION = "jpatest.isolation.rollback";
+    /**
+     * if "true", every test running concurrently works with its own databases and EntityManagerFactories,
+     * so tests may be executed in parallel. A test takes the lowest worker-number not in use by another running
+     * test, so there are never more databases per unit than tests running at the same time.
+     */
+    public static final String JPATEST_PARALLEL = "jpatest.parallel";
+    /**
+     * system-property; if "true", all persistence-units declared in any META-INF/persistence.xml are bootstrapped
+     * concurrently in the background as soon as this class is loaded
+     */
+    public static final String JPATEST_WARMUP = "jpatest.warmup";
+    /**
+     * directory to keep schema-templates in, so the schema of an unchanged persistence-unit is not generated again
+     * in every test-run
+     */
+    public static final String JPATEST_SCHEMA_CACHE = "jpatest.schema.cacheDir";
+    /**
+     * system-property; file the durations of all {@link TestPhase}s are written to when the JVM exits, with the
+     * id of the process inserted before the extension (e.g. "report-1234.csv"), so forked JVMs write separate
+     * files. Files ending with ".csv" are written as CSV, all others as JSON.
+     */
+    public static final String JPATEST_REPORT = "jpatest.report.file";
+    /**
+     * a warning is logged for every SELECT-statement executed at least this often in a single test (default 10),
+     * see {@link StatementStatistics#getRepeatedSelects(int)}
+     */
+    public static final String JPATEST_REPEATED_SELECT_THRESHOLD = "jpatest.statements.repeatedSelectThreshold";
+    /**
+     * number of idle connections kept open by the data-source of each persistence-unit (default 4)
+     */
+    public static final String JPATEST_POOL_MAX_IDLE = "jpatest.pool.maxIdle";
+    /**
+     * number of prepared statements cached per pooled connection (default 32)
+     */
+    public static final String JPATEST_POOL_STATEMENT_CACHE_SIZE = "jpatest.pool.statementCacheSize";
+    /**
+     * JNDI-name to bind the data-source of each persistence-unit to, "%s" is replaced by the name of the unit,
+     * followed by "_w" and the number of the worker with {@link #JPATEST_PARALLEL}. The data-sources are bound when
+     * the units are bootstrapped, and the units of a rule with a JNDI-name are bootstrapped when the first
+     * EntityManager is requested. Unless configured otherwise, the in-memory JNDI-implementation of
+     * directory-naming is used.
+     */
+    public static final String JPATEST_JNDI_NAME = "jpatest.dataSource.jndiName";
+    /**
+     * system-property limiting the number of cached EntityManagerFactories, the least recently used factory that
+     * is not in use by a running test is closed and its database dropped when there are more
+     */
+    public static final String JPATEST_CACHE_MAX_ENTRIES = "jpatest.cache.maxEntries";
+    /**
+     * system-property with the (approximate) heap in megabytes the cached EntityManagerFactories may use, before
+     * the least recently used ones are closed
+     */
+    public static final String JPATEST_CACHE_MAX_MEMORY = "jpatest.cache.maxMemory";
 
     private static final Logger LOGGER = LoggerFactory.getLogger(TestPersistenceUnit.class);
     private static final Properties GLOBAL_DEFAULTS = new Properties() {{
@@ -118,18 +233,66 @@ public class TestPersistenceUnit implements MethodRule {
         put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
     }};
 
-    private static Map<String, EntityManagerFactory> emCache = new HashMap<>();
-    private Set<EntityManagerFactory> usedPersistenceUnits = new HashSet<>();
-    private Set<EntityManager> createdEntityManagers = new HashSet<>();
-    private Server tcpServer;
+    /**
+     * properties that only influence the rule itself, rules differing in them share their EntityManagerFactories
+     */
+    private static final Set<String> RULE_PROPERTIES = new HashSet<>(Arrays.asList(
+        JPATEST_SERVER_PORT,
+        JPATEST_SERVER_LINGER,
+        JPATEST_SERVER_PORT_FILE,
+        JPATEST_ROLLBACK_ISOLATION,
+        JPATEST_PARALLEL,
+        JPATEST_REPEATED_SELECT_THRESHOLD,
+        JPATEST_FIXTURE_CHUNK_SIZE,
+        JPATEST_JNDI_NAME
+    ));
+
+    private static final AtomicInteger WORKER_COUNTER = new AtomicInteger();
+    /**
+     * worker-numbers released by finished tests, handed out again lowest first, so their units stay in use
+     */
+    private static final Queue<Integer> FREE_WORKER_IDS = new PriorityBlockingQueue<>();
+
+    private static final PersistenceUnitCache PERSISTENCE_UNITS = new PersistenceUnitCache(
+        Integer.getInteger(JPATEST_CACHE_MAX_ENTRIES, Integer.MAX_VALUE),
+        Long.getLong(JPATEST_CACHE_MAX_MEMORY, 0L) * 1024 * 1024);
+
+    static {
+        PERSISTENCE_UNITS.closeOnShutdown();
+        if (Boolean.getBoolean(JPATEST_WARMUP)) {
+            warmUp();
+        }
+    }
+
+    private Set<CachedPersistenceUnit> usedPersistenceUnits =
+        Collections.newSetFromMap(new ConcurrentHashMap<CachedPersistenceUnit, Boolean>());
+    private Map<EntityManager, CachedPersistenceUnit> createdEntityManagers = new ConcurrentHashMap<>();
+    private Set<LazyEntityManager> lazyEntityManagers =
+        Collections.newSetFromMap(new ConcurrentHashMap<LazyEntityManager, Boolean>());
+    private TcpServerLease tcpServer;
     private Properties propertyOverrides;
+    private String configurationSuffix;
+    private DatabaseCleaner databaseCleaner;
+    private StorageMode storageMode = StorageMode.HEAP;
+    private boolean rollbackIsolation;
+    private boolean parallel;
+    private Integer workerId;
+    private boolean pinConnections;
+    private int repeatedSelectThreshold = 10;
+    private int poolMaxIdle = 4;
+    private int poolStatementCacheSize = 32;
+    private int fixtureChunkSize = 500;
+    private int cleanDatabaseCount = 1;
+    private SchemaTemplateCache schemaTemplateCache;
+    private String testName;
+    private long testStart;
 
     public TestPersistenceUnit() {
         init(new Properties());
     }
 
     /**
-     * let the h2-database start a tcp-server on the given port, to connect during tests
+     * let the h2-database start a tcp-server on the given port (0 for any free port), to connect during tests
      */
     public TestPersistenceUnit(int port) {
         Properties properties = new Properties();
@@ -181,202 +344,805 @@ public class TestPersistenceUnit implements MethodRule {
         init(properties);
     }
 
+    /**
+     * Starts building the EntityManagerFactories of all declared persistence-units on background-threads.
+     * Tests asking for a unit that is still being built wait for that bootstrap instead of starting their own.
+     * The units are configured with the global properties only, see {@link #TestPersistenceUnit()}.
+     */
+    private static void warmUp() {
+        final TestPersistenceUnit warmUpRule = new TestPersistenceUnit();
+        if (warmUpRule.parallel) {
+            LOGGER.warn("warm-up is not supported when running tests in parallel");
+            return;
+        }
+        Set<String> persistenceUnits = PersistenceXml.getPersistenceUnits().keySet();
+        if (persistenceUnits.isEmpty()) {
+            return;
+        }
+        int threads = Math.min(persistenceUnits.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "jpatest-warmup-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (final String persistenceUnit : persistenceUnits) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.currentTimeMillis();
+                    try {
+                        PERSISTENCE_UNITS.release(warmUpRule.acquirePersistenceUnit(persistenceUnit));
+                        LOGGER.info("warmed up persistence-unit {} in {} ms", persistenceUnit,
+                            System.currentTimeMillis() - start);
+                    } catch (Exception | Error e) {
+                        LOGGER.warn("could not warm up persistence-unit " + persistenceUnit, e);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
     private void init(Properties properties) {
         String globalPropertyFile = System.getProperty("jpatest.global.properties");
         if (globalPropertyFile != null) {
-            this.propertyOverrides = new Properties();
-            File file = new File(globalPropertyFile);
-            try (FileReader fileReader = new FileReader(file)) {
-                this.propertyOverrides.load(fileReader);
+            Properties globalProperties;
+            try {
+                globalProperties = PropertyFiles.load(new File(globalPropertyFile));
             } catch (IOException e) {
                 throw new AssertionError(e);
             }
-            this.propertyOverrides.putAll(properties);
+            if (properties.isEmpty()) {
+                this.propertyOverrides = globalProperties;
+            } else {
+                this.propertyOverrides = new Properties();
+                this.propertyOverrides.putAll(globalProperties);
+                this.propertyOverrides.putAll(properties);
+            }
         } else {
             this.propertyOverrides = properties;
         }
+        configurationSuffix = makeConfigurationSuffix(this.propertyOverrides);
+        CleanMode cleanMode = CleanMode.DELETE;
+        if (this.propertyOverrides.containsKey(JPATEST_CLEAN_MODE)) {
+            String mode = this.propertyOverrides.get(JPATEST_CLEAN_MODE).toString();
+            cleanMode = CleanMode.valueOf(mode.trim().toUpperCase());
+        }
+        databaseCleaner = new DatabaseCleaner(cleanMode);
+        if (this.propertyOverrides.containsKey(JPATEST_STORAGE_MODE)) {
+            storageMode = StorageMode.fromString(this.propertyOverrides.get(JPATEST_STORAGE_MODE).toString());
+        }
+        rollbackIsolation = Boolean.parseBoolean(this.propertyOverrides.getProperty(JPATEST_ROLLBACK_ISOLATION));
+        parallel = Boolean.parseBoolean(this.propertyOverrides.getProperty(JPATEST_PARALLEL));
+        repeatedSelectThreshold = getIntProperty(JPATEST_REPEATED_SELECT_THRESHOLD, repeatedSelectThreshold);
+        poolMaxIdle = getIntProperty(JPATEST_POOL_MAX_IDLE, poolMaxIdle);
+        poolStatementCacheSize = getIntProperty(JPATEST_POOL_STATEMENT_CACHE_SIZE, poolStatementCacheSize);
+        fixtureChunkSize = getIntProperty(JPATEST_FIXTURE_CHUNK_SIZE, fixtureChunkSize);
+        cleanDatabaseCount = getIntProperty(JPATEST_CLEAN_DATABASES, cleanDatabaseCount);
+        if (this.propertyOverrides.containsKey(JPATEST_SCHEMA_CACHE)) {
+            String directory = this.propertyOverrides.getProperty(JPATEST_SCHEMA_CACHE);
+            schemaTemplateCache = new SchemaTemplateCache(new File(directory));
+        }
         if (this.propertyOverrides.containsKey(JPATEST_SERVER_PORT)) {
-            String port = (String) properties.get(JPATEST_SERVER_PORT);
-            try {
-                tcpServer = Server.createTcpServer("-tcpPort", port);
-            } catch (SQLException e) {
-                throw new AssertionError(e);
+            File serverPortFile = null;
+            if (this.propertyOverrides.containsKey(JPATEST_SERVER_PORT_FILE)) {
+                serverPortFile = new File(this.propertyOverrides.getProperty(JPATEST_SERVER_PORT_FILE));
             }
+            tcpServer = new TcpServerLease(getIntProperty(JPATEST_SERVER_PORT, 0),
+                getIntProperty(JPATEST_SERVER_LINGER, 2000), serverPortFile);
         }
     }
 
-    private EntityManager makeEntityManager(EntityManagerFactory emf) {
-        Properties emProperties = new Properties();
-        emProperties.put("openjpa.TransactionMode", "local");
-        return emf.createEntityManager(emProperties);
+    private int getIntProperty(String key, int defaultValue) {
+        Object value = propertyOverrides.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value.toString().trim());
     }
 
-    private EntityManagerFactory makeEntityManagerFactory(String s) throws SQLException {
-        Properties persistenceUnitProperties = new Properties();
-        persistenceUnitProperties.putAll(GLOBAL_DEFAULTS);
-        String url = String.format("jdbc:h2:mem:%s;DB_CLOSE_DELAY=-1", s);
+    private CachedPersistenceUnit makePersistenceUnit(String s, String databaseName) throws SQLException {
+        JpaProvider provider = JpaProvider.detect(s);
+        Properties persistenceUnitProperties = makePersistenceUnitProperties(provider, databaseName);
+        ConnectionSettings connectionSettings = ConnectionSettings.fromProperties(persistenceUnitProperties);
+        String schemaFingerprint = null;
+        if (schemaTemplateCache != null && isOwnDatabase(databaseName, connectionSettings)
+                && provider != JpaProvider.UNKNOWN) {
+            schemaFingerprint = schemaTemplateCache.fingerprint(s, persistenceUnitProperties);
+            if (schemaTemplateCache.load(schemaFingerprint, connectionSettings)) {
+                provider.disableSchemaGeneration(persistenceUnitProperties);
+                schemaFingerprint = null;
+            }
+        }
+        if (provider == JpaProvider.ECLIPSELINK && !persistenceUnitProperties.containsKey("eclipselink.session-name")) {
+            // EclipseLink shares sessions between factories of the same unit unless they are named differently
+            persistenceUnitProperties.put("eclipselink.session-name", databaseName);
+        }
+        if (Boolean.parseBoolean(propertyOverrides.getProperty(JPATEST_SHARED_CACHE))) {
+            provider.enableSharedCache(persistenceUnitProperties);
+        }
+        TestDataSource dataSource = null;
+        if (connectionSettings.getUrl() != null && provider != JpaProvider.UNKNOWN
+                && !JpaProvider.hasDataSource(persistenceUnitProperties)) {
+            dataSource = new TestDataSource(makeDatabases(databaseName, connectionSettings), poolMaxIdle,
+                poolStatementCacheSize);
+            provider.useDataSource(persistenceUnitProperties, dataSource);
+            if (provider == JpaProvider.OPENJPA && !propertyOverrides.containsKey("openjpa.ConnectionRetainMode")) {
+                // pooled connections are cheap, so there is no need to hold one for the whole EntityManager
+                persistenceUnitProperties.put("openjpa.ConnectionRetainMode", "on-demand");
+            }
+        }
+        EntityManagerFactory entityManagerFactory =
+            Persistence.createEntityManagerFactory(s, persistenceUnitProperties);
+        CachedPersistenceUnit persistenceUnit =
+            new CachedPersistenceUnit(s, entityManagerFactory, connectionSettings, dataSource, provider,
+                isOwnDatabase(databaseName, connectionSettings));
+        bindDataSource(persistenceUnit);
+        if (schemaFingerprint != null) {
+            persistenceUnit.ensureSchema();
+            schemaTemplateCache.store(schemaFingerprint, connectionSettings);
+        }
+        if (dataSource != null && dataSource.getDatabaseCount() > 1) {
+            databaseCleaner.enableBackgroundCleaning(persistenceUnit);
+        }
+        if (Boolean.parseBoolean(propertyOverrides.getProperty(JPATEST_TRACK_DIRTY_TABLES))) {
+            if (persistenceUnit.getBackgroundCleaner() != null) {
+                LOGGER.warn("dirty-table tracking is not supported together with cleaning in the background");
+            } else {
+                databaseCleaner.installDirtyTableTracking(persistenceUnit);
+            }
+        }
+        return persistenceUnit;
+    }
+
+    /**
+     * the settings of the databases the data-source of a unit serves, the spare databases for cleaning in the
+     * background are only added for the h2-database configured by jpatest
+     */
+    private List<ConnectionSettings> makeDatabases(String databaseName, ConnectionSettings connectionSettings) {
+        List<ConnectionSettings> result = new ArrayList<>();
+        result.add(connectionSettings);
+        if (cleanDatabaseCount <= 1) {
+            return result;
+        }
+        if (!isOwnDatabase(databaseName, connectionSettings)) {
+            LOGGER.warn("cleaning in the background is only supported for the h2-databases configured by jpatest");
+            return result;
+        }
+        for (int i = 1; i < cleanDatabaseCount; i++) {
+            result.add(connectionSettings.withUrl(makeUrl(databaseName + "_spare" + i)));
+        }
+        return result;
+    }
+
+    /**
+     * binds the data-source of the unit to the JNDI-name configured for this rule, the unit may have been built by
+     * another rule
+     */
+    private void bindDataSource(CachedPersistenceUnit persistenceUnit) {
+        if (persistenceUnit.getDataSource() != null && propertyOverrides.containsKey(JPATEST_JNDI_NAME)) {
+            String jndiName = propertyOverrides.getProperty(JPATEST_JNDI_NAME);
+            // every worker has its own data-source, so each needs its own name
+            String name = parallel ? persistenceUnit.getName() + "_w" + getWorkerId() : persistenceUnit.getName();
+            JndiBinding.bind(String.format(jndiName, name), persistenceUnit.getDataSource());
+        }
+    }
+
+    /**
+     * the defaults for the given provider, merged with the overrides of this rule. They are only needed while the
+     * unit is bootstrapped, so they are built anew for every bootstrap and not kept afterwards.
+     */
+    private Properties makePersistenceUnitProperties(JpaProvider provider, String databaseName) {
+        Properties defaults = new Properties();
+        defaults.putAll(GLOBAL_DEFAULTS);
+        String url = makeUrl(databaseName);
         // EclipseLink
-        persistenceUnitProperties.put("javax.persistence.jdbc.url", url);
+        defaults.put("javax.persistence.jdbc.url", url);
         // OpenJPA
-        persistenceUnitProperties.put("openjpa.Connection2URL", url);
+        defaults.put("openjpa.Connection2URL", url);
         // Hibernate
-        persistenceUnitProperties.put("hibernate.connection.url", url);
+        defaults.put("hibernate.connection.url", url);
+        Properties persistenceUnitProperties = new Properties();
+        for (Map.Entry<Object, Object> entry : defaults.entrySet()) {
+            if (!provider.isForeignProperty(entry.getKey().toString())) {
+                persistenceUnitProperties.put(entry.getKey(), entry.getValue());
+            }
+        }
         persistenceUnitProperties.putAll(propertyOverrides);
-        return Persistence.createEntityManagerFactory(s, persistenceUnitProperties);
+        return persistenceUnitProperties;
+    }
+
+    /**
+     * true if the unit uses the in-memory database configured by jpatest, and not one from the persistence.xml or
+     * the overrides
+     */
+    private boolean isOwnDatabase(String databaseName, ConnectionSettings connectionSettings) {
+        return makeUrl(databaseName).equals(connectionSettings.getUrl());
     }
 
-    public EntityManager getEntityManager(String s) throws SQLException {
-        EntityManagerFactory entityManagerFactory = getEntityManagerFactory(s);
-        usedPersistenceUnits.add(entityManagerFactory);
-        EntityManager entityManager = makeEntityManager(entityManagerFactory);
-        createdEntityManagers.add(entityManager);
+    private String makeUrl(String databaseName) {
+        // the databases are dropped by the cache of persistence-units, after the providers are closed
+        return storageMode.getUrl(databaseName) + ";DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE";
+    }
+
+    /**
+     * A new EntityManager of the persistence-unit, which is closed at the end of the test. The EntityManager is only
+     * created, and the unit only bootstrapped and cleaned after the test, when it is used for the first time.
+     * Units of a rule with a {@link #JPATEST_JNDI_NAME JNDI-name} are bootstrapped right away, so their data-source
+     * can be looked up before.
+     */
+    public EntityManager getEntityManager(final String s) throws SQLException {
+        if (propertyOverrides.containsKey(JPATEST_JNDI_NAME)) {
+            getPersistenceUnit(s);
+        }
+        LazyEntityManager lazyEntityManager = new LazyEntityManager(s, new Callable<EntityManager>() {
+            @Override
+            public EntityManager call() throws Exception {
+                return createEntityManager(s);
+            }
+        });
+        lazyEntityManagers.add(lazyEntityManager);
+        return lazyEntityManager.getProxy();
+    }
+
+    private EntityManager createEntityManager(String s) throws SQLException {
+        long start = System.nanoTime();
+        boolean cacheHit = PERSISTENCE_UNITS.contains(getDatabaseName(s));
+        CachedPersistenceUnit persistenceUnit = getPersistenceUnit(s);
+        firePhase(TestPhase.BOOTSTRAP, s, start, cacheHit);
+        startStatementStatistics(persistenceUnit);
+        if (pinConnections) {
+            pinConnection(persistenceUnit);
+        }
+        start = System.nanoTime();
+        EntityManager entityManager = persistenceUnit.createEntityManager();
+        firePhase(TestPhase.CREATE_ENTITY_MANAGER, s, start, false);
+        createdEntityManagers.put(entityManager, persistenceUnit);
         return entityManager;
     }
 
-    private EntityManagerFactory getEntityManagerFactory(String s) throws SQLException {
-        if (!emCache.containsKey(s)) {
-            emCache.put(s, makeEntityManagerFactory(s));
+    /**
+     * The statements the persistence-unit executed since the current test started using it. Only units using the
+     * data-source provided by jpatest can be counted, so this is not supported if the properties configure an own
+     * data-source.
+     */
+    public StatementStatistics getStatementStatistics(String s) throws SQLException {
+        CachedPersistenceUnit persistenceUnit = getPersistenceUnit(s);
+        if (persistenceUnit.getDataSource() == null) {
+            throw new IllegalStateException("persistence-unit " + s
+                + " does not use a data-source provided by jpatest");
         }
-        return emCache.get(s);
+        return startStatementStatistics(persistenceUnit);
     }
 
-    private class PersistenceStatement extends Statement {
+    /**
+     * The counters of the shared cache and the query-cache of the persistence-unit, enabled with
+     * {@link #JPATEST_SHARED_CACHE}. They are kept by the provider for the whole lifetime of the
+     * EntityManagerFactory, so tests should compare them before and after the code under test. Supported with
+     * Hibernate and OpenJPA.
+     */
+    public SharedCacheStatistics getSharedCacheStatistics(String s) throws SQLException {
+        if (!Boolean.parseBoolean(propertyOverrides.getProperty(JPATEST_SHARED_CACHE))) {
+            throw new IllegalStateException("the shared cache is not enabled, set " + JPATEST_SHARED_CACHE);
+        }
+        try {
+            return getPersistenceUnit(s).getSharedCacheStatistics();
+        } catch (UnsupportedOperationException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
 
-        private Statement parent;
+    private StatementStatistics startStatementStatistics(CachedPersistenceUnit persistenceUnit) {
+        TestDataSource dataSource = persistenceUnit.getDataSource();
+        if (dataSource == null) {
+            return null;
+        }
+        synchronized (dataSource) {
+            if (dataSource.getStatistics() == null) {
+                dataSource.setStatistics(new StatementStatistics());
+            }
+            return dataSource.getStatistics();
+        }
+    }
 
-        private PersistenceStatement(Statement parent) {
-            this.parent = parent;
+    private void stopStatementStatistics(CachedPersistenceUnit persistenceUnit) {
+        TestDataSource dataSource = persistenceUnit.getDataSource();
+        if (dataSource == null || dataSource.getStatistics() == null) {
+            return;
+        }
+        StatementStatistics statistics = dataSource.getStatistics();
+        dataSource.setStatistics(null);
+        for (Map.Entry<String, Integer> entry : statistics.getRepeatedSelects(repeatedSelectThreshold).entrySet()) {
+            LOGGER.warn("{} executed the same query {} times, possibly loading N+1: {}",
+                testName != null ? testName : persistenceUnit.getName(), entry.getValue(), entry.getKey());
         }
+    }
 
-        @Override
-        public void evaluate() throws Throwable {
-            try {
-                parent.evaluate();
-                for (EntityManager e : createdEntityManagers) {
-                    if (e.getTransaction().isActive()) {
-                        e.getTransaction().rollback();
-                        throw new AssertionError("EntityManager " + e + " left an open transaction");
-                    }
+    /**
+     * registers a listener for the phases of all tests in this JVM
+     */
+    public static void addPhaseListener(TestPhaseListener listener) {
+        PhaseListeners.add(listener);
+    }
+
+    public static void removePhaseListener(TestPhaseListener listener) {
+        PhaseListeners.remove(listener);
+    }
+
+    private void firePhase(TestPhase phase, String persistenceUnit, long startNanos, boolean cacheHit) {
+        if (!PhaseListeners.isEmpty()) {
+            long duration = System.nanoTime() - startNanos;
+            PhaseListeners.fire(new TestPhaseEvent(testName, persistenceUnit, phase, duration, cacheHit));
+        }
+    }
+
+    /**
+     * Starts building a fixture with a new EntityManager of the persistence-unit, see {@link FixtureBuilder}.
+     * The builder has to be closed to persist the last chunk.
+     */
+    public FixtureBuilder buildFixture(String s) throws SQLException {
+        return buildFixture(s, fixtureChunkSize);
+    }
+
+    public FixtureBuilder buildFixture(String s, int chunkSize) throws SQLException {
+        return new FixtureBuilder(createEntityManager(s), chunkSize);
+    }
+
+    /**
+     * Streams CSV-datasets into the tables of the persistence-unit with JDBC-batches, without going through an
+     * EntityManager. Each file is named after an entity or a table, e.g. "Person.csv", and its header-line names
+     * the attributes or columns of the values, empty values are inserted as null. Tables are loaded in the order
+     * of their foreign-keys. The shared cache of the unit is evicted afterwards.
+     *
+     * Every batch of rows is committed on its own, so a failed load leaves a partial dataset. Reference-cycles
+     * between the tables are broken by setting nullable foreign-keys after all rows are inserted, see
+     * {@link DatasetLoader}.
+     *
+     * Loaded rows should not use ids the provider may generate for entities persisted later in the test.
+     */
+    public void load(String s, Path... files) throws SQLException, IOException {
+        CachedPersistenceUnit persistenceUnit = getPersistenceUnit(s);
+        if (pinConnections) {
+            pinConnection(persistenceUnit);
+        }
+        long start = System.currentTimeMillis();
+        persistenceUnit.ensureSchema();
+        TestDataSource dataSource = persistenceUnit.getDataSource();
+        DatasetLoader loader = new DatasetLoader(persistenceUnit.getEntityManagerFactory().getMetamodel(),
+            dataSource != null && dataSource.isPinned());
+        try (Connection connection = dataSource != null ? dataSource.openTestConnection()
+                : persistenceUnit.getConnectionSettings().openConnection()) {
+            loader.load(connection, Arrays.asList(files));
+        }
+        persistenceUnit.evictCaches();
+        LOGGER.info("loaded {} datasets into {} in {} ms", files.length, s, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * The (uncompressed) number of bytes used by the pages of the persistence-unit's h2-database. For databases not
+     * stored in pages (see {@link StorageMode#HEAP}) the heap used by the rows is estimated, without indexes and the
+     * content of variable-length values. -1 if the unit does not use an h2-database.
+     */
+    public long getDatabaseSize(String s) throws SQLException {
+        CachedPersistenceUnit persistenceUnit = getPersistenceUnit(s);
+        if (!persistenceUnit.getConnectionSettings().isH2()) {
+            return -1;
+        }
+        try (Connection connection = persistenceUnit.openConnection()) {
+            return H2Database.getSize(connection);
+        }
+    }
+
+    private void logDatabaseSize(CachedPersistenceUnit persistenceUnit) {
+        if (!persistenceUnit.getConnectionSettings().isH2()) {
+            return;
+        }
+        try (Connection connection = persistenceUnit.openConnection()) {
+            long size = H2Database.getSize(connection) / 1024;
+            if (storageMode.isPageStore()) {
+                LOGGER.info("database of {} uses {} KB after {}", persistenceUnit.getName(), size, testName);
+            } else {
+                LOGGER.debug("database of {} uses about {} KB of heap after {}", persistenceUnit.getName(), size,
+                    testName);
+            }
+        } catch (SQLException e) {
+            LOGGER.warn("could not determine size of the database of " + persistenceUnit.getName(), e);
+        }
+    }
+
+    /**
+     * Captures the current content of the persistence-unit's h2-database in memory, so it can be
+     * brought back with {@link #restore(String)} in this or any later test.
+     * A previous checkpoint of the same persistence-unit is replaced.
+     */
+    public void checkpoint(String s) throws SQLException {
+        CachedPersistenceUnit persistenceUnit = getPersistenceUnitForCheckpoint(s);
+        long start = System.currentTimeMillis();
+        try (Connection connection = persistenceUnit.openConnection()) {
+            persistenceUnit.setCheckpoint(H2Database.createImage(connection));
+        }
+        LOGGER.info("created checkpoint of {} in {} ms", s, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Replaces the content of the persistence-unit's h2-database with the last checkpoint.
+     * The persistence-contexts of all EntityManagers of the unit created in this test are cleared and the
+     * shared cache is evicted, so no stale entity-state survives the restore.
+     */
+    public void restore(String s) throws SQLException {
+        CachedPersistenceUnit persistenceUnit = getPersistenceUnitForCheckpoint(s);
+        byte[] checkpoint = persistenceUnit.getCheckpoint();
+        if (checkpoint == null) {
+            throw new IllegalStateException("no checkpoint was created for persistence-unit " + s);
+        }
+        long start = System.currentTimeMillis();
+        for (Map.Entry<EntityManager, CachedPersistenceUnit> entry : createdEntityManagers.entrySet()) {
+            if (entry.getValue() == persistenceUnit && entry.getKey().isOpen()) {
+                entry.getKey().clear();
+            }
+        }
+        try (Connection connection = persistenceUnit.openConnection()) {
+            H2Database.restoreImage(connection, checkpoint);
+        }
+        persistenceUnit.evictCaches();
+        LOGGER.info("restored checkpoint of {} in {} ms", s, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * The data-source the persistence-unit obtains its connections from. Connections taken from it during a
+     * rollback-isolated test share the transaction of the test's EntityManagers.
+     */
+    public DataSource getDataSource(String s) throws SQLException {
+        CachedPersistenceUnit persistenceUnit = getPersistenceUnit(s);
+        if (persistenceUnit.getDataSource() == null) {
+            throw new IllegalStateException("persistence-unit " + s
+                + " does not use a data-source provided by jpatest");
+        }
+        startStatementStatistics(persistenceUnit);
+        return persistenceUnit.getDataSource();
+    }
+
+    private CachedPersistenceUnit getPersistenceUnitForCheckpoint(String s) throws SQLException {
+        CachedPersistenceUnit persistenceUnit = getPersistenceUnit(s);
+        if (!persistenceUnit.getConnectionSettings().isH2()) {
+            throw new IllegalStateException("checkpoints are only supported for h2-databases");
+        }
+        TestDataSource dataSource = persistenceUnit.getDataSource();
+        if (dataSource != null && dataSource.isPinned()) {
+            throw new IllegalStateException("checkpoints are not supported in tests with rollback-isolation");
+        }
+        return persistenceUnit;
+    }
+
+    private void pinConnection(CachedPersistenceUnit persistenceUnit) throws SQLException {
+        TestDataSource dataSource = persistenceUnit.getDataSource();
+        if (dataSource == null) {
+            LOGGER.warn("persistence-unit {} does not use a data-source provided by jpatest, "
+                + "its data is deleted after the test instead of being rolled back", persistenceUnit.getName());
+            return;
+        }
+        dataSource.pin();
+    }
+
+    /**
+     * name of the database of the unit, which also identifies its cached EntityManagerFactory
+     */
+    private String getDatabaseName(String s) {
+        String databaseName = s + configurationSuffix;
+        return parallel ? databaseName + "_w" + getWorkerId() : databaseName;
+    }
+
+    /**
+     * the worker-number of the current test, taken when the test first needs it and kept until its databases are
+     * cleaned or handed over
+     */
+    private synchronized int getWorkerId() {
+        if (workerId == null) {
+            workerId = FREE_WORKER_IDS.poll();
+            if (workerId == null) {
+                workerId = WORKER_COUNTER.getAndIncrement();
+            }
+        }
+        return workerId;
+    }
+
+    private synchronized void releaseWorkerId() {
+        if (workerId != null) {
+            FREE_WORKER_IDS.add(workerId);
+            workerId = null;
+        }
+    }
+
+    /**
+     * "" if the overrides do not influence how the units are built, otherwise "_" followed by a hash of the
+     * relevant overrides, so units configured differently get their own EntityManagerFactories and databases. It is
+     * computed once per rule, nothing is kept for the overrides of other rules.
+     */
+    private static String makeConfigurationSuffix(Properties overrides) {
+        Map<String, String> relevantOverrides = new TreeMap<>();
+        for (Map.Entry<Object, Object> entry : overrides.entrySet()) {
+            String key = entry.getKey().toString();
+            if (!RULE_PROPERTIES.contains(key)) {
+                relevantOverrides.put(key, String.valueOf(entry.getValue()));
+            }
+        }
+        if (relevantOverrides.isEmpty()) {
+            return "";
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (Map.Entry<String, String> entry : relevantOverrides.entrySet()) {
+            digest.update((entry.getKey() + '\0' + entry.getValue() + '\0').getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder hash = new StringBuilder("_");
+        byte[] bytes = digest.digest();
+        for (int i = 0; i < 6; i++) {
+            hash.append(String.format("%02x", bytes[i]));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * returns the cached persistence-unit, building it if necessary, and marks it as used by the current test
+     */
+    private CachedPersistenceUnit getPersistenceUnit(String s) throws SQLException {
+        CachedPersistenceUnit persistenceUnit = acquirePersistenceUnit(s);
+        if (usedPersistenceUnits.add(persistenceUnit)) {
+            bindDataSource(persistenceUnit);
+        } else {
+            // already acquired for this test
+            PERSISTENCE_UNITS.release(persistenceUnit);
+        }
+        return persistenceUnit;
+    }
+
+    /**
+     * The cached persistence-unit, which is not evicted before it is released again. Concurrent callers asking for
+     * the same unit wait for a single bootstrap instead of building their own.
+     */
+    private CachedPersistenceUnit acquirePersistenceUnit(final String s) throws SQLException {
+        final String databaseName = getDatabaseName(s);
+        try {
+            return PERSISTENCE_UNITS.acquire(databaseName, new Callable<CachedPersistenceUnit>() {
+                @Override
+                public CachedPersistenceUnit call() throws Exception {
+                    return makePersistenceUnit(s, databaseName);
                 }
-            } finally {
-                try {
-                    for (EntityManager e : createdEntityManagers) {
-                        e.close();
-                    }
-                } finally {
-                    createdEntityManagers.clear();
-                    for (EntityManagerFactory emf : usedPersistenceUnits) {
-                        clearTables(emf);
-                    }
+            });
+        } catch (SQLException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    /**
+     * hits, misses and evictions of the EntityManagerFactories cached for all tests of the JVM
+     */
+    public static CacheStatistics getCacheStatistics() {
+        return PERSISTENCE_UNITS.getStatistics();
+    }
+
+    /**
+     * Marks the beginning of a test, for test-frameworks that cannot use this class as {@link MethodRule}.
+     * Every call has to be followed by {@link #endTest()}.
+     *
+     * @param testName "class#method" of the test, reported to {@link TestPhaseListener}s
+     * @param rollbackIsolated if the test runs inside an outer transaction that is rolled back afterwards,
+     *                         see {@link RollbackIsolation}
+     */
+    public void beginTest(String testName, boolean rollbackIsolated) {
+        this.testName = testName;
+        pinConnections = rollbackIsolated || rollbackIsolation;
+        testStart = System.nanoTime();
+    }
+
+    /**
+     * rolls back and fails if an EntityManager created during the test still has an active transaction
+     */
+    public void verifyTransactionsClosed() {
+        finishTestBody();
+        long start = System.nanoTime();
+        try {
+            for (EntityManager e : createdEntityManagers.keySet()) {
+                if (e.getTransaction().isActive()) {
+                    e.getTransaction().rollback();
+                    throw new AssertionError("EntityManager " + e + " left an open transaction");
                 }
             }
+        } finally {
+            firePhase(TestPhase.VERIFY_TRANSACTIONS, null, start, false);
         }
+    }
+
+    private void finishTestBody() {
+        if (testStart != 0) {
+            firePhase(TestPhase.TEST, null, testStart, false);
+            testStart = 0;
+        }
+    }
 
-        private void clearTables(EntityManagerFactory emf) {
-            long start = System.currentTimeMillis();
-            Set<ManagedType<?>> types = emf.getMetamodel().getManagedTypes();
-            EntityManager entityManager = makeEntityManager(emf);
-            Set<Class<?>> javaTypes = new HashSet<Class<?>>();
-            for (ManagedType<?> type : types) {
-                javaTypes.add(type.getJavaType());
+    /**
+     * Closes all EntityManagers created during the test and rolls back the databases of a rollback-isolated test.
+     * Databases written without rollback-isolation are left untouched until {@link #cleanDatabases()}.
+     */
+    public void endTest() {
+        finishTestBody();
+        for (LazyEntityManager lazyEntityManager : lazyEntityManagers) {
+            lazyEntityManager.detach();
+        }
+        lazyEntityManagers.clear();
+        long start = System.nanoTime();
+        try {
+            for (EntityManager e : createdEntityManagers.keySet()) {
+                e.close();
             }
-            int lastsize = javaTypes.size();
-            while (!javaTypes.isEmpty()) {
-                Iterator<Class<?>> iterator = javaTypes.iterator();
-                Collection<Exception> exceptionsDuringClean = new ArrayList<>();
-                while (iterator.hasNext()) {
-                    Class<?> javaType = iterator.next();
-                    if (isNonEntityDatabaseClass(javaType)) {
-                        iterator.remove();
-                        continue;
-                    }
-                    String name = retrieveEntityName(javaType);
-                    if (name == null) {
-                        LOGGER.warn("could not determine name for entity {}", javaType);
-                        iterator.remove();
-                        continue;
-                    }
-                    try {
-                        entityManager.getTransaction().begin();
-                        entityManager.createQuery("DELETE FROM " + name).executeUpdate();
-                        entityManager.getTransaction().commit();
-                        iterator.remove();
-                    } catch (Exception e) {
-                        if (e instanceof PersistenceException
-                            || e.getClass().getName().equals("org.eclipse.persistence.exceptions.DatabaseException") // for eclipse-link < 2.5.0
-                            ) {
-                            exceptionsDuringClean.add(e);
-                            LOGGER.debug("error during delete, could be normal", e);
-                            entityManager.getTransaction().rollback();
-                        }
-                    }
+        } finally {
+            firePhase(TestPhase.CLOSE, null, start, false);
+            createdEntityManagers.clear();
+            pinConnections = false;
+            Iterator<CachedPersistenceUnit> iterator = usedPersistenceUnits.iterator();
+            while (iterator.hasNext()) {
+                CachedPersistenceUnit persistenceUnit = iterator.next();
+                stopStatementStatistics(persistenceUnit);
+                TestDataSource dataSource = persistenceUnit.getDataSource();
+                if (dataSource == null || !dataSource.isPinned()) {
+                    continue;
                 }
-                if (javaTypes.size() == lastsize) {
-                    entityManager.getTransaction().begin();
-                    entityManager.createNativeQuery("SHUTDOWN").executeUpdate();
-                    try {
-                        entityManager.getTransaction().commit();
-                    } catch (Exception e) {
-                        // will always fail because database is shutting down,
-                        // but we need to clear the transaction-state in the entitymanager
-                        break;
-                    }
-                    LOGGER.error("could not clean database", exceptionsDuringClean.iterator().next());
+                start = System.nanoTime();
+                boolean rolledBack = databaseCleaner.rollback(persistenceUnit);
+                firePhase(TestPhase.CLEAN, persistenceUnit.getName(), start, false);
+                // a failed rollback leaves the unit in the set, so its tables are cleared instead
+                if (rolledBack) {
+                    iterator.remove();
+                    PERSISTENCE_UNITS.release(persistenceUnit);
                 }
-                lastsize = javaTypes.size();
             }
-            entityManager.close();
-            LOGGER.info("cleared database in {} ms", System.currentTimeMillis() - start);
         }
+    }
 
-        private boolean isNonEntityDatabaseClass(Class<?> clazz) {
-            if (Modifier.isAbstract(clazz.getModifiers())) {
-                return true;
-            }
-            if (clazz.getAnnotation(Embeddable.class) != null) {
-                return true;
+    /**
+     * clears the databases of all persistence-units used since the last call
+     */
+    public void cleanDatabases() {
+        Iterator<CachedPersistenceUnit> iterator = usedPersistenceUnits.iterator();
+        while (iterator.hasNext()) {
+            CachedPersistenceUnit persistenceUnit = iterator.next();
+            iterator.remove();
+            if (storageMode.isPageStore() || LOGGER.isDebugEnabled()) {
+                logDatabaseSize(persistenceUnit);
             }
-            if (clazz.getAnnotation(MappedSuperclass.class) != null) {
-                return true;
+            long start = System.nanoTime();
+            boolean cleared = false;
+            try {
+                cleared = databaseCleaner.clean(persistenceUnit);
+            } finally {
+                if (!cleared) {
+                    // the next test gets a new database instead of the leftovers
+                    PERSISTENCE_UNITS.invalidate(persistenceUnit);
+                }
+                PERSISTENCE_UNITS.release(persistenceUnit);
             }
-            return false;
+            firePhase(TestPhase.CLEAN, persistenceUnit.getName(), start, false);
         }
+        releaseWorkerId();
+    }
 
-        private String retrieveEntityName(Class<?> javaType) {
-            Entity entity = javaType.getAnnotation(Entity.class);
-            if (entity == null) {
-                return null;
+    /**
+     * Hands the databases used since the last clean over to another instance, which clears them with its next
+     * {@link #cleanDatabases()}. Databases used by several tests are cleared only once that way.
+     */
+    public void deferCleanup(TestPersistenceUnit owner) {
+        Iterator<CachedPersistenceUnit> iterator = usedPersistenceUnits.iterator();
+        while (iterator.hasNext()) {
+            CachedPersistenceUnit persistenceUnit = iterator.next();
+            iterator.remove();
+            if (!owner.usedPersistenceUnits.add(persistenceUnit)) {
+                PERSISTENCE_UNITS.release(persistenceUnit);
             }
-            if (entity.name().isEmpty()) {
-                return javaType.getSimpleName();
+        }
+        releaseWorkerId();
+    }
+
+    /**
+     * starts the tcp-server of the h2-database, if this rule was created with a port, or joins the server another
+     * rule already started for that port
+     */
+    public void startServer() throws SQLException {
+        if (tcpServer != null) {
+            tcpServer.acquire();
+        }
+    }
+
+    /**
+     * releases the tcp-server, which keeps running for {@link #JPATEST_SERVER_LINGER} milliseconds in case the next
+     * test needs it again
+     */
+    public void stopServer() {
+        if (tcpServer != null) {
+            tcpServer.release();
+        }
+    }
+
+    /**
+     * the port the tcp-server started for this rule listens on, or -1 if it is not running
+     */
+    public int getServerPort() {
+        return tcpServer != null ? tcpServer.getPort() : -1;
+    }
+
+    private class PersistenceStatement extends Statement {
+
+        private Statement parent;
+        private String testName;
+        private boolean rollbackIsolated;
+
+        private PersistenceStatement(Statement parent, String testName, boolean rollbackIsolated) {
+            this.parent = parent;
+            this.testName = testName;
+            this.rollbackIsolated = rollbackIsolated;
+        }
+
+        @Override
+        public void evaluate() throws Throwable {
+            beginTest(testName, rollbackIsolated);
+            try {
+                parent.evaluate();
+                verifyTransactionsClosed();
+            } finally {
+                try {
+                    endTest();
+                } finally {
+                    cleanDatabases();
+                }
             }
-            return entity.name();
         }
     }
 
-    private class ServerSpawningStatement extends PersistenceStatement {
+    private class ServerSpawningStatement extends Statement {
+
+        private Statement parent;
+
         private ServerSpawningStatement(Statement parent) {
-            super(parent);
+            this.parent = parent;
         }
 
         @Override
         public void evaluate() throws Throwable {
-            tcpServer.start();
-            LOGGER.info("TCP server started");
+            startServer();
             try {
-                super.evaluate();
+                parent.evaluate();
             } finally {
-                LOGGER.info("TCP server stopped");
-                tcpServer.stop();
+                stopServer();
             }
         }
     }
 
     @Override
     public Statement apply(Statement statement, FrameworkMethod frameworkMethod, Object o) {
+        String testName = frameworkMethod == null || o == null ? null
+            : o.getClass().getName() + "#" + frameworkMethod.getName();
+        Statement persistenceStatement =
+            new PersistenceStatement(statement, testName, isRollbackIsolated(frameworkMethod, o));
         if (tcpServer != null) {
-            return new ServerSpawningStatement(statement);
+            return new ServerSpawningStatement(persistenceStatement);
+        }
+        return persistenceStatement;
+    }
+
+    private boolean isRollbackIsolated(FrameworkMethod frameworkMethod, Object target) {
+        if (rollbackIsolation) {
+            return true;
+        }
+        if (frameworkMethod != null && frameworkMethod.getAnnotation(RollbackIsolation.class) != null) {
+            return true;
         }
-        return new PersistenceStatement(statement);
+        return target != null && target.getClass().isAnnotationPresent(RollbackIsolation.class);
     }
 }
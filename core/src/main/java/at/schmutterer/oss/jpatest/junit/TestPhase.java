@@ -0,0 +1,52 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+/**
+ * the phases of a test measured by {@link TestPersistenceUnit}
+ *
+ * @see TestPhaseListener
+ */
+public enum TestPhase {
+    /**
+     * looking up the EntityManagerFactory of a persistence-unit, including its bootstrap if it was not cached yet
+     */
+    BOOTSTRAP,
+    /**
+     * creating an EntityManager
+     */
+    CREATE_ENTITY_MANAGER,
+    /**
+     * the test itself. Bootstrapping and creating EntityManagers during the test is included.
+     */
+    TEST,
+    /**
+     * checking that no EntityManager left an open transaction
+     */
+    VERIFY_TRANSACTIONS,
+    /**
+     * closing the EntityManagers created during the test
+     */
+    CLOSE,
+    /**
+     * clearing or rolling back the database of a persistence-unit
+     */
+    CLEAN
+}
@@ -0,0 +1,75 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+/**
+ * the duration of one {@link TestPhase} of a test
+ */
+public final class TestPhaseEvent {
+
+    private final String testName;
+    private final String persistenceUnit;
+    private final TestPhase phase;
+    private final long durationNanos;
+    private final boolean cacheHit;
+
+    TestPhaseEvent(String testName, String persistenceUnit, TestPhase phase, long durationNanos, boolean cacheHit) {
+        this.testName = testName;
+        this.persistenceUnit = persistenceUnit;
+        this.phase = phase;
+        this.durationNanos = durationNanos;
+        this.cacheHit = cacheHit;
+    }
+
+    /**
+     * "class#method" of the test, or null if the phase does not belong to a single test
+     */
+    public String getTestName() {
+        return testName;
+    }
+
+    /**
+     * the persistence-unit the phase worked on, or null for phases concerning all units of the test
+     */
+    public String getPersistenceUnit() {
+        return persistenceUnit;
+    }
+
+    public TestPhase getPhase() {
+        return phase;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * for {@link TestPhase#BOOTSTRAP}: true if the EntityManagerFactory was already cached (or being built)
+     */
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    @Override
+    public String toString() {
+        return phase + " of " + testName + (persistenceUnit != null ? " (" + persistenceUnit + ")" : "")
+            + ": " + durationNanos / 1000000.0 + " ms";
+    }
+}
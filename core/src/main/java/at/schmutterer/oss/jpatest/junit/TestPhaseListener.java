@@ -0,0 +1,32 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.junit;
+
+/**
+ * Receives the duration of every measured {@link TestPhase}.
+ *
+ * Listeners are registered with {@link TestPersistenceUnit#addPhaseListener(TestPhaseListener)} or through a
+ * {@link java.util.ServiceLoader}-file META-INF/services/at.schmutterer.oss.jpatest.junit.TestPhaseListener.
+ * They are called synchronously from the threads running the tests, so they have to be fast and thread-safe.
+ */
+public interface TestPhaseListener {
+
+    void phaseFinished(TestPhaseEvent event);
+}
@@ -99,6 +99,16 @@ public class UseInMavenProjectsTest {
         assertThat(new MavenProcessHandler("projects/good/eclipselink25/pom.xml").execute(), is(0L));
     }
 
+    @Test
+    public void testFeatures() throws Exception {
+        assertThat(new MavenProcessHandler("projects/good/features/pom.xml").execute(), is(0L));
+    }
+
+    @Test
+    public void testJupiter() throws Exception {
+        assertThat(new MavenProcessHandler("projects/good/jupiter/pom.xml").execute(), is(0L));
+    }
+
     @Test
     public void testConnectsToDatabaseDuringTest() throws Exception {
         MavenProcessHandler handler = new MavenProcessHandler("projects/good/remote-project/pom.xml");
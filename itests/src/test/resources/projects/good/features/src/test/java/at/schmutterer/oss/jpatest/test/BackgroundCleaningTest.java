@@ -0,0 +1,80 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+
+import javax.persistence.EntityManager;
+
+import org.junit.FixMethodOrder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import at.schmutterer.oss.jpatest.junit.TestPersistenceUnit;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class BackgroundCleaningTest {
+
+    private static Long firstId;
+
+    @Rule
+    public TestPersistenceUnit testPersistenceUnit =
+        new TestPersistenceUnit(Collections.singletonMap(TestPersistenceUnit.JPATEST_CLEAN_DATABASES, "2"));
+
+    @Test
+    public void test1WritesToFirstDatabase() throws Exception {
+        firstId = persistTestModel();
+    }
+
+    @Test
+    public void test2WritesToCleanSecondDatabase() throws Exception {
+        EntityManager em = testPersistenceUnit.getEntityManager("jpa-unit-test");
+        assertThat(Fixtures.count(em, TestModel.class), is(0L));
+        assertThat(persistTestModel(), not(firstId));
+    }
+
+    @Test
+    public void test3GetsFirstDatabaseBackCleaned() throws Exception {
+        EntityManager em = testPersistenceUnit.getEntityManager("jpa-unit-test");
+        assertThat(Fixtures.count(em, TestModel.class), is(0L));
+        Fixtures.persistDepartment(em);
+    }
+
+    @Test
+    public void test4GetsSecondDatabaseBackCleaned() throws Exception {
+        EntityManager em = testPersistenceUnit.getEntityManager("jpa-unit-test");
+        assertThat(Fixtures.count(em, TestModel.class), is(0L));
+        assertThat(Fixtures.count(em, Department.class), is(0L));
+    }
+
+    private Long persistTestModel() throws Exception {
+        EntityManager em = testPersistenceUnit.getEntityManager("jpa-unit-test");
+        TestModel testModel = new TestModel();
+        testModel.setValue("TEST");
+        em.getTransaction().begin();
+        em.persist(testModel);
+        em.getTransaction().commit();
+        return testModel.getId();
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import javax.persistence.EntityManager;
+
+import org.junit.FixMethodOrder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import at.schmutterer.oss.jpatest.junit.TestPersistenceUnit;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class CheckpointTest {
+
+    @Rule
+    public TestPersistenceUnit testPersistenceUnit = new TestPersistenceUnit();
+
+    @Test
+    public void test1RestoresWithinTheTest() throws Exception {
+        EntityManager em = testPersistenceUnit.getEntityManager("jpa-unit-test");
+        Fixtures.persistDepartment(em);
+        testPersistenceUnit.checkpoint("jpa-unit-test");
+
+        em.getTransaction().begin();
+        Department department = em.find(Department.class, 1L);
+        department.setName("Marketing");
+        department.setManager(null);
+        em.remove(em.find(Employee.class, 11L));
+        em.getTransaction().commit();
+
+        testPersistenceUnit.restore("jpa-unit-test");
+        assertThat(Fixtures.count(em, Employee.class), is(1L));
+        assertThat(em.find(Department.class, 1L).getName(), is("Sales"));
+        assertThat(em.find(Department.class, 1L).getManager().getName(), is("Alice"));
+    }
+
+    @Test
+    public void test2RestoresIntoACleanDatabase() throws Exception {
+        EntityManager em = testPersistenceUnit.getEntityManager("jpa-unit-test");
+        assertThat(Fixtures.count(em, Department.class), is(0L));
+        testPersistenceUnit.restore("jpa-unit-test");
+        assertThat(em.find(Employee.class, 11L).getDepartment().getName(), is("Sales"));
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.test;
+
+import javax.persistence.EntityManager;
+
+/**
+ * a department and its manager referencing each other, persisted through JPA
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    static void persistDepartment(EntityManager em) {
+        em.getTransaction().begin();
+        Department department = new Department();
+        department.setId(1L);
+        department.setName("Sales");
+        em.persist(department);
+        Employee manager = new Employee();
+        manager.setId(11L);
+        manager.setName("Alice");
+        manager.setDepartment(department);
+        em.persist(manager);
+        em.flush();
+        department.setManager(manager);
+        em.getTransaction().commit();
+    }
+
+    static long count(EntityManager em, Class<?> entityClass) {
+        return em.createQuery("SELECT COUNT(e) FROM " + entityClass.getSimpleName() + " e", Long.class)
+            .getSingleResult();
+    }
+}
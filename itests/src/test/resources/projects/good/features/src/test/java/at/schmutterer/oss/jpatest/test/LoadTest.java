@@ -0,0 +1,79 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import javax.persistence.EntityManager;
+
+import org.junit.FixMethodOrder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import at.schmutterer.oss.jpatest.junit.RollbackIsolation;
+import at.schmutterer.oss.jpatest.junit.TestPersistenceUnit;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class LoadTest {
+
+    private static final Path DEPARTMENTS = Paths.get("src/test/data/Department.csv");
+    private static final Path EMPLOYEES = Paths.get("src/test/data/Employee.csv");
+
+    @Rule
+    public TestPersistenceUnit testPersistenceUnit = new TestPersistenceUnit();
+
+    @Test
+    @RollbackIsolation
+    public void test1LoadsReferenceCycleInRolledBackTest() throws Exception {
+        testPersistenceUnit.load("jpa-unit-test", DEPARTMENTS, EMPLOYEES);
+        assertLoaded();
+    }
+
+    @Test
+    public void test2LoadsReferenceCycleInCommittedTest() throws Exception {
+        EntityManager em = testPersistenceUnit.getEntityManager("jpa-unit-test");
+        assertThat(Fixtures.count(em, Department.class), is(0L));
+        testPersistenceUnit.load("jpa-unit-test", EMPLOYEES, DEPARTMENTS);
+        assertLoaded();
+    }
+
+    @Test
+    public void test3StartsWithEmptyTables() throws Exception {
+        EntityManager em = testPersistenceUnit.getEntityManager("jpa-unit-test");
+        assertThat(Fixtures.count(em, Department.class), is(0L));
+        assertThat(Fixtures.count(em, Employee.class), is(0L));
+    }
+
+    private void assertLoaded() throws Exception {
+        EntityManager em = testPersistenceUnit.getEntityManager("jpa-unit-test");
+        assertThat(Fixtures.count(em, Department.class), is(3L));
+        assertThat(Fixtures.count(em, Employee.class), is(3L));
+        Department sales = em.find(Department.class, 1L);
+        assertThat(sales.getManager().getName(), is("Alice"));
+        assertThat(sales.getManager().getDepartment(), is(sales));
+        assertThat(em.find(Employee.class, 12L).getDepartment().getManager().getName(), is("Bob"));
+        assertThat(em.find(Department.class, 3L).getManager(), nullValue());
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import javax.persistence.EntityManager;
+
+import org.junit.FixMethodOrder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import at.schmutterer.oss.jpatest.junit.RollbackIsolation;
+import at.schmutterer.oss.jpatest.junit.TestPersistenceUnit;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class RollbackIsolationTest {
+
+    @Rule
+    public TestPersistenceUnit testPersistenceUnit = new TestPersistenceUnit();
+
+    @Test
+    @RollbackIsolation
+    public void test1CommitsAndRollsBackNestedTransactions() throws Exception {
+        EntityManager em = testPersistenceUnit.getEntityManager("jpa-unit-test");
+        Fixtures.persistDepartment(em);
+
+        EntityManager other = testPersistenceUnit.getEntityManager("jpa-unit-test");
+        other.getTransaction().begin();
+        Department department = new Department();
+        department.setId(2L);
+        other.persist(department);
+        other.getTransaction().rollback();
+
+        EntityManager reader = testPersistenceUnit.getEntityManager("jpa-unit-test");
+        assertThat(reader.find(Department.class, 1L).getManager(), notNullValue());
+        assertThat(reader.find(Department.class, 2L), nullValue());
+    }
+
+    @Test
+    public void test2SeesNothingOfTheRolledBackTest() throws Exception {
+        EntityManager em = testPersistenceUnit.getEntityManager("jpa-unit-test");
+        assertThat(Fixtures.count(em, Department.class), is(0L));
+        assertThat(Fixtures.count(em, Employee.class), is(0L));
+    }
+}
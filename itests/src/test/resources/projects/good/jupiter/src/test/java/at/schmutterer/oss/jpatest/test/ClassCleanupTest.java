@@ -0,0 +1,52 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import javax.persistence.EntityManager;
+
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.extension.ExtendWith;
+import at.schmutterer.oss.jpatest.jupiter.CleanupScope;
+import at.schmutterer.oss.jpatest.jupiter.PersistenceCleanup;
+import at.schmutterer.oss.jpatest.jupiter.PersistenceUnitName;
+import at.schmutterer.oss.jpatest.jupiter.TestPersistenceExtension;
+
+@ExtendWith(TestPersistenceExtension.class)
+@PersistenceCleanup(CleanupScope.CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class ClassCleanupTest {
+
+    @Test
+    @Order(1)
+    void persistsModel(@PersistenceUnitName("jpa-unit-test") EntityManager em) {
+        TestModels.persist(em, "TEST");
+    }
+
+    @Test
+    @Order(2)
+    void seesModelOfPreviousTest(@PersistenceUnitName("jpa-unit-test") EntityManager em) {
+        assertEquals(1L, TestModels.count(em));
+    }
+}
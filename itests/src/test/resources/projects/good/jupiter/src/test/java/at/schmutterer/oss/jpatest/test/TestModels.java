@@ -0,0 +1,40 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.test;
+
+import javax.persistence.EntityManager;
+
+final class TestModels {
+
+    private TestModels() {
+    }
+
+    static void persist(EntityManager em, String value) {
+        TestModel testModel = new TestModel();
+        testModel.setValue(value);
+        em.getTransaction().begin();
+        em.persist(testModel);
+        em.getTransaction().commit();
+    }
+
+    static long count(EntityManager em) {
+        return em.createQuery("SELECT COUNT(m) FROM TestModel m", Long.class).getSingleResult();
+    }
+}
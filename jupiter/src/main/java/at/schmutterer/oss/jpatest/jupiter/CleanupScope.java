@@ -0,0 +1,38 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.jupiter;
+
+/**
+ * how long the data written by a test stays in the database before it is cleared
+ */
+public enum CleanupScope {
+    /**
+     * the database is cleared after each test
+     */
+    METHOD,
+    /**
+     * the database is cleared after all tests of the class have run
+     */
+    CLASS,
+    /**
+     * the database is cleared once, after all tests of the test-run have finished
+     */
+    SUITE
+}
@@ -0,0 +1,199 @@
+/**
+ * Licensed to Schmutterer & Partner IT GmbH under one or more
+ * contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Schmutterer & Partner IT GmbH
+ * licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package at.schmutterer.oss.jpatest.jupiter;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import javax.persistence.EntityManager;
+
+import at.schmutterer.oss.jpatest.junit.RollbackIsolation;
+import at.schmutterer.oss.jpatest.junit.TestPersistenceUnit;
+import org.junit.jupiter.api.extension.AfterEachCallback;
+import org.junit.jupiter.api.extension.BeforeEachCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.junit.jupiter.api.extension.ParameterContext;
+import org.junit.jupiter.api.extension.ParameterResolutionException;
+import org.junit.jupiter.api.extension.ParameterResolver;
+import org.junit.platform.commons.support.AnnotationSupport;
+
+/**
+ * JUnit Jupiter counterpart of the {@link TestPersistenceUnit}-rule.
+ *
+ * Test- and lifecycle-methods receive EntityManagers by declaring a parameter annotated with
+ * {@link PersistenceUnitName}:
+ *
+ * <pre>
+ * &#64;ExtendWith(TestPersistenceExtension.class)
+ * class MyTest {
+ *     &#64;Test
+ *     void myTest(&#64;PersistenceUnitName("my-persistence-unit") EntityManager em) {
+ *         // do stuff with our em
+ *     }
+ * }
+ * </pre>
+ *
+ * Every test gets its own {@link TestPersistenceUnit}, so tests may run concurrently (together with
+ * {@link TestPersistenceUnit#JPATEST_PARALLEL}). When the databases are cleared is chosen per class with
+ * {@link PersistenceCleanup}. Property-overrides are passed by registering the extension with
+ * {@link org.junit.jupiter.api.extension.RegisterExtension}.
+ */
+public class TestPersistenceExtension implements BeforeEachCallback, AfterEachCallback, ParameterResolver {
+
+    /**
+     * configuration-parameter with the name of the {@link CleanupScope} for classes not annotated with
+     * {@link PersistenceCleanup}
+     */
+    public static final String CLEANUP_SCOPE_PARAMETER = "jpatest.cleanup.scope";
+
+    private static final ExtensionContext.Namespace NAMESPACE =
+        ExtensionContext.Namespace.create(TestPersistenceExtension.class);
+    private static final String RULE_KEY = "rule";
+    private static final String DEFERRED_CLEANUP_KEY = "deferredCleanup";
+
+    private final Map<?, ?> propertyOverrides;
+
+    public TestPersistenceExtension() {
+        this(Collections.emptyMap());
+    }
+
+    /**
+     * override properties for all persistence-units, see {@link TestPersistenceUnit#TestPersistenceUnit(Map)}
+     */
+    public TestPersistenceExtension(Map<?, ?> propertyOverrides) {
+        this.propertyOverrides = propertyOverrides;
+    }
+
+    @Override
+    public void beforeEach(ExtensionContext context) throws SQLException {
+        TestPersistenceUnit testPersistenceUnit = new TestPersistenceUnit(propertyOverrides);
+        context.getStore(NAMESPACE).put(RULE_KEY, testPersistenceUnit);
+        testPersistenceUnit.startServer();
+        String testName = context.getRequiredTestClass().getName() + "#" + context.getRequiredTestMethod().getName();
+        testPersistenceUnit.beginTest(testName, isRollbackIsolated(context));
+    }
+
+    @Override
+    public void afterEach(ExtensionContext context) {
+        TestPersistenceUnit testPersistenceUnit =
+            context.getStore(NAMESPACE).remove(RULE_KEY, TestPersistenceUnit.class);
+        if (testPersistenceUnit == null) {
+            return;
+        }
+        try {
+            if (!context.getExecutionException().isPresent()) {
+                testPersistenceUnit.verifyTransactionsClosed();
+            }
+        } finally {
+            try {
+                testPersistenceUnit.endTest();
+            } finally {
+                try {
+                    cleanup(context, testPersistenceUnit);
+                } finally {
+                    testPersistenceUnit.stopServer();
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean supportsParameter(ParameterContext parameterContext, ExtensionContext extensionContext) {
+        return parameterContext.getParameter().getType() == EntityManager.class;
+    }
+
+    @Override
+    public Object resolveParameter(ParameterContext parameterContext, ExtensionContext extensionContext) {
+        Optional<PersistenceUnitName> persistenceUnitName = parameterContext.findAnnotation(PersistenceUnitName.class);
+        if (!persistenceUnitName.isPresent()) {
+            throw new ParameterResolutionException("EntityManager-parameters have to be annotated with @"
+                + PersistenceUnitName.class.getSimpleName());
+        }
+        TestPersistenceUnit testPersistenceUnit =
+            extensionContext.getStore(NAMESPACE).get(RULE_KEY, TestPersistenceUnit.class);
+        if (testPersistenceUnit == null) {
+            throw new ParameterResolutionException(
+                "EntityManagers can only be injected into test-methods and their @BeforeEach/@AfterEach-methods");
+        }
+        try {
+            return testPersistenceUnit.getEntityManager(persistenceUnitName.get().value());
+        } catch (SQLException e) {
+            throw new ParameterResolutionException("could not create EntityManager for persistence-unit "
+                + persistenceUnitName.get().value(), e);
+        }
+    }
+
+    private void cleanup(ExtensionContext context, TestPersistenceUnit testPersistenceUnit) {
+        CleanupScope scope = getCleanupScope(context);
+        if (scope == CleanupScope.METHOD) {
+            testPersistenceUnit.cleanDatabases();
+            return;
+        }
+        ExtensionContext owner = scope == CleanupScope.SUITE ? context.getRoot() : getClassContext(context);
+        DeferredCleanup deferredCleanup = owner.getStore(NAMESPACE).getOrComputeIfAbsent(DEFERRED_CLEANUP_KEY,
+            key -> new DeferredCleanup(new TestPersistenceUnit(propertyOverrides)), DeferredCleanup.class);
+        testPersistenceUnit.deferCleanup(deferredCleanup.testPersistenceUnit);
+    }
+
+    private static CleanupScope getCleanupScope(ExtensionContext context) {
+        Optional<PersistenceCleanup> annotation =
+            AnnotationSupport.findAnnotation(context.getRequiredTestClass(), PersistenceCleanup.class);
+        if (annotation.isPresent()) {
+            return annotation.get().value();
+        }
+        return context.getConfigurationParameter(CLEANUP_SCOPE_PARAMETER)
+            .map(value -> CleanupScope.valueOf(value.trim().toUpperCase()))
+            .orElse(CleanupScope.METHOD);
+    }
+
+    /**
+     * the context of the class declaring the test, also for tests created by templates like parameterized tests
+     */
+    private static ExtensionContext getClassContext(ExtensionContext context) {
+        ExtensionContext current = context;
+        while (current.getTestMethod().isPresent() && current.getParent().isPresent()) {
+            current = current.getParent().get();
+        }
+        return current;
+    }
+
+    private static boolean isRollbackIsolated(ExtensionContext context) {
+        return AnnotationSupport.isAnnotated(context.getTestMethod(), RollbackIsolation.class)
+            || AnnotationSupport.isAnnotated(context.getTestClass(), RollbackIsolation.class);
+    }
+
+    /**
+     * collects the databases used by several tests and clears them when the owning context is closed
+     */
+    private static class DeferredCleanup implements ExtensionContext.Store.CloseableResource {
+
+        private final TestPersistenceUnit testPersistenceUnit;
+
+        private DeferredCleanup(TestPersistenceUnit testPersistenceUnit) {
+            this.testPersistenceUnit = testPersistenceUnit;
+        }
+
+        @Override
+        public void close() {
+            testPersistenceUnit.cleanDatabases();
+        }
+    }
+}